@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.webview.chromium;
+
+import android.util.SparseBooleanArray;
+import android.view.Choreographer;
+import android.view.InputEvent;
+import android.view.KeyEvent;
+import android.view.MotionEvent;
+
+import org.chromium.base.ThreadUtils;
+
+import java.util.ArrayList;
+
+/**
+ * Forwards input events received off the Chromium UI thread without blocking the caller.
+ *
+ * Used when the app has bound Chromium to a different looper than the one delivering input.
+ * Events are copied, batched and handed to the UI thread once per frame; the caller is given
+ * a prediction of whether the event will be consumed, based on the most recent real result
+ * for the same kind of event (and key code, for key events).
+ */
+class AsyncInputForwarder {
+    static final int KIND_TOUCH = 0;
+    static final int KIND_HOVER = 1;
+    static final int KIND_GENERIC_MOTION = 2;
+    static final int KIND_DISPATCH_KEY = 3;
+    static final int KIND_KEY_DOWN = 4;
+    static final int KIND_KEY_UP = 5;
+    static final int KIND_KEY_MULTIPLE = 6;
+    private static final int NUM_KINDS = 7;
+
+    /**
+     * Receives the forwarded events on the UI thread.
+     */
+    interface Target {
+        boolean dispatchForwardedEvent(int kind, InputEvent event, int repeatCount);
+    }
+
+    private static class PendingEvent {
+        final int mKind;
+        final InputEvent mEvent;
+        final int mRepeatCount;
+
+        PendingEvent(int kind, InputEvent event, int repeatCount) {
+            mKind = kind;
+            mEvent = event;
+            mRepeatCount = repeatCount;
+        }
+    }
+
+    private final Target mTarget;
+
+    // Guards the members below.
+    private final Object mLock = new Object();
+    private ArrayList<PendingEvent> mPendingEvents = new ArrayList<PendingEvent>();
+    // Only touched on the UI thread; swapped with mPendingEvents to flush without allocating.
+    private ArrayList<PendingEvent> mFlushingEvents = new ArrayList<PendingEvent>();
+    private boolean mFlushScheduled;
+    // Last result per motion event kind. Touch must default to consumed, otherwise the View
+    // system stops sending us the rest of the gesture after the first ACTION_DOWN.
+    private final boolean[] mLastMotionResults = new boolean[] { true, true, true };
+    // Last result per key code, per key event kind.
+    private final SparseBooleanArray[] mLastKeyResults = new SparseBooleanArray[NUM_KINDS];
+
+    private final Choreographer.FrameCallback mFlushCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            flush();
+        }
+    };
+
+    // Choreographer is per-looper, so the frame callback has to be posted from the UI thread.
+    private final Runnable mScheduleFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(mFlushCallback);
+        }
+    };
+
+    AsyncInputForwarder(Target target) {
+        mTarget = target;
+        for (int kind = KIND_DISPATCH_KEY; kind < NUM_KINDS; kind++) {
+            mLastKeyResults[kind] = new SparseBooleanArray();
+        }
+    }
+
+    /**
+     * Queues a copy of |event| for the UI thread and returns the predicted result. Can be
+     * called on any thread.
+     */
+    boolean forward(int kind, InputEvent event, int repeatCount) {
+        // The caller's event is recycled once it returns, so we have to hold on to a copy.
+        InputEvent copy = event instanceof MotionEvent ?
+                MotionEvent.obtain((MotionEvent) event) : new KeyEvent((KeyEvent) event);
+        boolean prediction;
+        boolean scheduleFlush;
+        synchronized (mLock) {
+            mPendingEvents.add(new PendingEvent(kind, copy, repeatCount));
+            prediction = predictLocked(kind, event);
+            scheduleFlush = !mFlushScheduled;
+            mFlushScheduled = true;
+        }
+        if (scheduleFlush) {
+            ThreadUtils.postOnUiThread(mScheduleFlushTask);
+        }
+        return prediction;
+    }
+
+    private boolean predictLocked(int kind, InputEvent event) {
+        if (kind < KIND_DISPATCH_KEY) {
+            return mLastMotionResults[kind];
+        }
+        int keyCode = ((KeyEvent) event).getKeyCode();
+        // Until we know better assume we don't consume system keys (e.g. BACK), so that they
+        // keep falling through to the app.
+        return mLastKeyResults[kind].get(keyCode, !KeyEvent.isSystemKey(keyCode));
+    }
+
+    private void flush() {
+        ArrayList<PendingEvent> events;
+        synchronized (mLock) {
+            events = mPendingEvents;
+            mPendingEvents = mFlushingEvents;
+            mFlushingEvents = events;
+            mFlushScheduled = false;
+        }
+        for (int i = 0; i < events.size(); i++) {
+            PendingEvent pending = events.get(i);
+            boolean result = mTarget.dispatchForwardedEvent(
+                    pending.mKind, pending.mEvent, pending.mRepeatCount);
+            synchronized (mLock) {
+                if (pending.mKind < KIND_DISPATCH_KEY) {
+                    mLastMotionResults[pending.mKind] = result;
+                } else {
+                    mLastKeyResults[pending.mKind].put(
+                            ((KeyEvent) pending.mEvent).getKeyCode(), result);
+                }
+            }
+            if (pending.mEvent instanceof MotionEvent) {
+                ((MotionEvent) pending.mEvent).recycle();
+            }
+        }
+        events.clear();
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.webview.chromium;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records how long threads spend blocked waiting for the UI thread to run a WebView API call
+ * on their behalf, broken down by the WebView method that blocked.
+ *
+ * Recording is lock-free: each histogram is a set of log2 buckets split into a few stripes
+ * indexed by the calling thread, so concurrent callers rarely contend on the same counters.
+ */
+final class BlockingCallStats {
+    // Bucket i counts waits in [2^(i-1), 2^i) microseconds; bucket 0 counts waits under 1us.
+    private static final int NUM_BUCKETS = 32;
+    // Must be a power of two.
+    private static final int NUM_STRIPES = 4;
+
+    // Call sites are keyed by the class of the Callable / Runnable handed to the UI thread,
+    // which is unique per call site, so the method name only has to be resolved once.
+    private static final ConcurrentHashMap<Class<?>, Histogram> sHistogramsByCallSite =
+            new ConcurrentHashMap<Class<?>, Histogram>();
+    private static final ConcurrentHashMap<String, Histogram> sHistogramsByName =
+            new ConcurrentHashMap<String, Histogram>();
+
+    private BlockingCallStats() {
+    }
+
+    static final class Histogram {
+        private final String mName;
+        private final AtomicLongArray mBuckets = new AtomicLongArray(NUM_STRIPES * NUM_BUCKETS);
+        private final AtomicLong mMaxMicros = new AtomicLong();
+        private final AtomicLong mTimeouts = new AtomicLong();
+
+        private Histogram(String name) {
+            mName = name;
+        }
+
+        void record(long waitNanos, boolean timedOut) {
+            long micros = waitNanos / 1000;
+            int bucket = Math.min(NUM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            int stripe = (int) (Thread.currentThread().getId() & (NUM_STRIPES - 1));
+            mBuckets.incrementAndGet(stripe * NUM_BUCKETS + bucket);
+            if (timedOut) {
+                mTimeouts.incrementAndGet();
+            }
+            long max = mMaxMicros.get();
+            while (micros > max && !mMaxMicros.compareAndSet(max, micros)) {
+                max = mMaxMicros.get();
+            }
+        }
+
+        String getName() {
+            return mName;
+        }
+
+        long getTimeouts() {
+            return mTimeouts.get();
+        }
+
+        long getMaxMicros() {
+            return mMaxMicros.get();
+        }
+
+        // Folds the stripes together. Not an atomic snapshot, which is fine for reporting.
+        private long[] collectBuckets() {
+            long[] buckets = new long[NUM_BUCKETS];
+            for (int stripe = 0; stripe < NUM_STRIPES; stripe++) {
+                for (int i = 0; i < NUM_BUCKETS; i++) {
+                    buckets[i] += mBuckets.get(stripe * NUM_BUCKETS + i);
+                }
+            }
+            return buckets;
+        }
+
+        long getCount() {
+            long count = 0;
+            for (long c : collectBuckets()) {
+                count += c;
+            }
+            return count;
+        }
+
+        // Returns the upper bound, in microseconds, of the bucket holding the given percentile.
+        long getPercentileMicros(int percentile) {
+            long[] buckets = collectBuckets();
+            long count = 0;
+            for (long c : buckets) {
+                count += c;
+            }
+            if (count == 0) return 0;
+            long rank = (count * percentile + 99) / 100;
+            long seen = 0;
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return 1L << i;
+                }
+            }
+            return 1L << (NUM_BUCKETS - 1);
+        }
+    }
+
+    /**
+     * Returns the histogram for |callSite|, resolving its name with |resolver| the first time
+     * the call site is seen.
+     */
+    static Histogram forCallSite(Class<?> callSite, NameResolver resolver) {
+        Histogram histogram = sHistogramsByCallSite.get(callSite);
+        if (histogram != null) return histogram;
+
+        String name = resolver.resolveName();
+        histogram = sHistogramsByName.get(name);
+        if (histogram == null) {
+            Histogram newHistogram = new Histogram(name);
+            histogram = sHistogramsByName.putIfAbsent(name, newHistogram);
+            if (histogram == null) histogram = newHistogram;
+        }
+        sHistogramsByCallSite.putIfAbsent(callSite, histogram);
+        return histogram;
+    }
+
+    interface NameResolver {
+        String resolveName();
+    }
+
+    /**
+     * Writes a summary of all recorded call sites, worst offenders (by total time blocked at
+     * p50) first.
+     */
+    static void dump(PrintWriter pw) {
+        List<Histogram> histograms = new ArrayList<Histogram>(sHistogramsByName.values());
+        Collections.sort(histograms, new Comparator<Histogram>() {
+            @Override
+            public int compare(Histogram lhs, Histogram rhs) {
+                long l = lhs.getCount() * lhs.getPercentileMicros(50);
+                long r = rhs.getCount() * rhs.getPercentileMicros(50);
+                return l < r ? 1 : (l == r ? 0 : -1);
+            }
+        });
+        pw.println("WebView blocking calls (wait times in us, bucketed to powers of two):");
+        for (Histogram h : histograms) {
+            pw.println("  " + h.getName() + ": count=" + h.getCount() +
+                    " p50=" + h.getPercentileMicros(50) +
+                    " p99=" + h.getPercentileMicros(99) +
+                    " max=" + h.getMaxMicros() +
+                    " timeouts=" + h.getTimeouts());
+        }
+        pw.flush();
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.webview.chromium;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded multi-producer, single-consumer queue of preallocated command records.
+ *
+ * Producers on any thread copy an opcode and a few primitive arguments into the next free
+ * record, so posting a command does not allocate. The single consumer (the UI thread) reads
+ * records in order, interprets them by opcode and hands them back with {@link #release}.
+ *
+ * This is the classic sequence-numbered ring: each record carries the position it is ready
+ * for, which lets producers claim records with one CAS and the consumer see only fully
+ * written ones.
+ */
+final class CommandRing {
+    static final class Command {
+        // Position at which this record can next be claimed (== pos) or read (== pos + 1).
+        private volatile long mSequence;
+
+        int mOpcode;
+        int mArg0;
+        int mArg1;
+        int mArg2;
+        int mArg3;
+        Object mObject;
+        // System.nanoTime() at which the command was added.
+        long mEnqueueTimeNanos;
+
+        private Command(long sequence) {
+            mSequence = sequence;
+        }
+
+        // Creates a standalone command, for callers that need to queue one elsewhere when the
+        // ring is full.
+        Command(int opcode, int arg0, int arg1, int arg2, int arg3, Object object,
+                long enqueueTimeNanos) {
+            mOpcode = opcode;
+            mArg0 = arg0;
+            mArg1 = arg1;
+            mArg2 = arg2;
+            mArg3 = arg3;
+            mObject = object;
+            mEnqueueTimeNanos = enqueueTimeNanos;
+        }
+    }
+
+    private final Command[] mCommands;
+    private final int mMask;
+    // Next position to be claimed by a producer.
+    private final AtomicLong mTail = new AtomicLong();
+    // Next position to be read by the consumer. Only accessed by the consumer.
+    private long mHead;
+
+    /**
+     * @param capacity number of records, rounded up to a power of two.
+     */
+    CommandRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mCommands = new Command[size];
+        mMask = size - 1;
+        for (int i = 0; i < size; i++) {
+            mCommands[i] = new Command(i);
+        }
+    }
+
+    /**
+     * Appends a command. Can be called on any thread.
+     *
+     * @return false if the ring is full, in which case nothing was added.
+     */
+    boolean offer(int opcode, int arg0, int arg1, int arg2, int arg3, Object object,
+            long enqueueTimeNanos) {
+        Command command;
+        long pos = mTail.get();
+        while (true) {
+            command = mCommands[(int) pos & mMask];
+            long diff = command.mSequence - pos;
+            if (diff == 0) {
+                if (mTail.compareAndSet(pos, pos + 1)) break;
+                pos = mTail.get();
+            } else if (diff < 0) {
+                // The consumer has not released this record from the previous lap yet.
+                return false;
+            } else {
+                // Another producer claimed this position first.
+                pos = mTail.get();
+            }
+        }
+        command.mOpcode = opcode;
+        command.mArg0 = arg0;
+        command.mArg1 = arg1;
+        command.mArg2 = arg2;
+        command.mArg3 = arg3;
+        command.mObject = object;
+        command.mEnqueueTimeNanos = enqueueTimeNanos;
+        // Publishes the fields written above to the consumer.
+        command.mSequence = pos + 1;
+        return true;
+    }
+
+    /**
+     * Returns the oldest command without removing it, or null if there is none ready. Must
+     * only be called by the consumer, which must {@link #release} the command before the next
+     * call to peek.
+     */
+    Command peek() {
+        Command command = mCommands[(int) mHead & mMask];
+        return command.mSequence == mHead + 1 ? command : null;
+    }
+
+    /**
+     * Removes the command returned by the last call to {@link #peek} and makes its record
+     * available to producers again.
+     */
+    void release(Command command) {
+        command.mObject = null;
+        command.mSequence = mHead + mMask + 1;
+        mHead++;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.webview.chromium;
+
+import android.os.FileUtils;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FilenameFilter;
+
+/**
+ * Wipes the WebView data directory without blocking the caller on deleting its contents, which
+ * can be hundreds of megabytes of cache and databases. The directory is renamed to a tombstone
+ * next to it and recreated empty, and tombstones are deleted at low priority in the background.
+ * Any left behind by a process that died mid-delete are swept up on a later launch.
+ */
+final class DataDirectoryCleaner {
+    private static final String TAG = "DataDirectoryCleaner";
+
+    private static final String TOMBSTONE_INFIX = ".deleted-";
+
+    // Log deletion progress every this many files.
+    private static final int PROGRESS_LOG_INTERVAL = 1000;
+
+    private DataDirectoryCleaner() {
+    }
+
+    // Empties |dataDir|. Falls back to deleting the contents synchronously if it can't be
+    // renamed.
+    static void wipe(File dataDir) {
+        File tombstone = new File(dataDir.getParentFile(),
+                dataDir.getName() + TOMBSTONE_INFIX + System.currentTimeMillis());
+        if (!dataDir.renameTo(tombstone)) {
+            Log.w(TAG, "Unable to rename " + dataDir + "; deleting its contents in place");
+            FileUtils.deleteContents(dataDir);
+            return;
+        }
+        if (!dataDir.mkdir()) {
+            Log.w(TAG, "Unable to recreate " + dataDir);
+        }
+        sweepTombstones(dataDir);
+    }
+
+    // Deletes any tombstones of |dataDir| in the background. Called on every launch, so the
+    // check itself is a single listing of the parent directory on the calling thread, and
+    // nothing is scheduled when there is nothing to delete.
+    static void sweepTombstones(File dataDir) {
+        final String prefix = dataDir.getName() + TOMBSTONE_INFIX;
+        final File[] tombstones = dataDir.getParentFile().listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(prefix);
+            }
+        });
+        if (tombstones == null || tombstones.length == 0) return;
+        // Use a thread of our own rather than the AsyncTask pool: startup runs its tasks there,
+        // and a large delete must not hold up one of them or run at their priority.
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+                for (File tombstone : tombstones) {
+                    deleteTombstone(tombstone);
+                }
+            }
+        }, TAG).start();
+    }
+
+    private static void deleteTombstone(File tombstone) {
+        Log.i(TAG, "Deleting " + tombstone);
+        long start = SystemClock.uptimeMillis();
+        int[] deleted = new int[1];
+        boolean ok = deleteRecursively(tombstone, deleted);
+        Log.i(TAG, (ok ? "Deleted " : "Partially deleted ") + tombstone + ": " + deleted[0] +
+                " files in " + (SystemClock.uptimeMillis() - start) + "ms");
+    }
+
+    // Like FileUtils.deleteContents() followed by deleting |file| itself, but counts the files
+    // deleted into |deleted[0]| so progress can be logged.
+    private static boolean deleteRecursively(File file, int[] deleted) {
+        boolean ok = true;
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    ok &= deleteRecursively(child, deleted);
+                }
+            }
+        }
+        if (!file.delete()) {
+            Log.w(TAG, "Failed to delete " + file);
+            return false;
+        }
+        if (++deleted[0] % PROGRESS_LOG_INTERVAL == 0) {
+            Log.i(TAG, "Deleted " + deleted[0] + " files so far");
+        }
+        return ok;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.webview.chromium;
+
+import org.chromium.android_webview.AwContents;
+
+import android.graphics.Bitmap;
+
+/**
+ * Immutable snapshot of the navigation state of an AwContents.
+ *
+ * Snapshots are captured on the UI thread whenever the navigation state changes and are
+ * published through a volatile field, so that WebView getters called on other threads can be
+ * answered without blocking on the UI thread.
+ */
+final class NavigationState {
+    private final String mUrl;
+    private final String mOriginalUrl;
+    private final String mTitle;
+    private final Bitmap mFavicon;
+    private final boolean mCanGoBack;
+    private final boolean mCanGoForward;
+    private final boolean mIsPaused;
+
+    // Must be called on the UI thread.
+    /* package */ NavigationState(AwContents awContents) {
+        this(normalizeUrl(awContents.getUrl()), normalizeUrl(awContents.getOriginalUrl()),
+                awContents.getTitle(), awContents.getFavicon(), awContents.canGoBack(),
+                awContents.canGoForward(), awContents.isPaused());
+    }
+
+    private NavigationState(String url, String originalUrl, String title, Bitmap favicon,
+            boolean canGoBack, boolean canGoForward, boolean isPaused) {
+        mUrl = url;
+        mOriginalUrl = originalUrl;
+        mTitle = title;
+        mFavicon = favicon;
+        mCanGoBack = canGoBack;
+        mCanGoForward = canGoForward;
+        mIsPaused = isPaused;
+    }
+
+    // Matches the behavior of WebView.getUrl() and WebView.getOriginalUrl().
+    private static String normalizeUrl(String url) {
+        if (url == null || url.trim().isEmpty()) return null;
+        return url;
+    }
+
+    /* package */ NavigationState withFavicon(Bitmap favicon) {
+        return new NavigationState(mUrl, mOriginalUrl, mTitle, favicon, mCanGoBack,
+                mCanGoForward, mIsPaused);
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    public String getOriginalUrl() {
+        return mOriginalUrl;
+    }
+
+    public String getTitle() {
+        return mTitle;
+    }
+
+    public Bitmap getFavicon() {
+        return mFavicon;
+    }
+
+    public boolean canGoBack() {
+        return mCanGoBack;
+    }
+
+    public boolean canGoForward() {
+        return mCanGoForward;
+    }
+
+    public boolean isPaused() {
+        return mIsPaused;
+    }
+}
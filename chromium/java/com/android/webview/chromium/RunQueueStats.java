@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.webview.chromium;
+
+import android.os.Trace;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide counters for the tasks WebViewChromium queues for the UI thread, summed over
+ * all WebView instances.
+ */
+final class RunQueueStats {
+    private static final AtomicInteger sDepth = new AtomicInteger();
+    private static final AtomicInteger sPeakDepth = new AtomicInteger();
+    private static final AtomicLong sTasksRun = new AtomicLong();
+    private static final AtomicLong sTotalTimeInQueueNanos = new AtomicLong();
+    private static final AtomicLong sMaxTimeInQueueNanos = new AtomicLong();
+    private static final AtomicLong sCoalescedOnOverflow = new AtomicLong();
+    private static final AtomicLong sBlockedOnOverflow = new AtomicLong();
+    private static final AtomicLong sOverflowBeforeStart = new AtomicLong();
+
+    private RunQueueStats() {
+    }
+
+    static void recordEnqueue() {
+        int depth = sDepth.incrementAndGet();
+        int peak = sPeakDepth.get();
+        while (depth > peak && !sPeakDepth.compareAndSet(peak, depth)) {
+            peak = sPeakDepth.get();
+        }
+        Trace.traceCounter(Trace.TRACE_TAG_WEBVIEW, "WebViewChromium.runQueueDepth", depth);
+    }
+
+    static void recordDequeue(long timeInQueueNanos) {
+        int depth = sDepth.decrementAndGet();
+        sTasksRun.incrementAndGet();
+        sTotalTimeInQueueNanos.addAndGet(timeInQueueNanos);
+        long max = sMaxTimeInQueueNanos.get();
+        while (timeInQueueNanos > max &&
+                !sMaxTimeInQueueNanos.compareAndSet(max, timeInQueueNanos)) {
+            max = sMaxTimeInQueueNanos.get();
+        }
+        Trace.traceCounter(Trace.TRACE_TAG_WEBVIEW, "WebViewChromium.runQueueDepth", depth);
+    }
+
+    static void recordCoalescedOnOverflow() {
+        sCoalescedOnOverflow.incrementAndGet();
+    }
+
+    static void recordBlockedOnOverflow() {
+        sBlockedOnOverflow.incrementAndGet();
+    }
+
+    static void recordOverflowBeforeStart() {
+        sOverflowBeforeStart.incrementAndGet();
+    }
+
+    static void dump(PrintWriter pw) {
+        long tasksRun = sTasksRun.get();
+        long meanTimeInQueueUs =
+                tasksRun == 0 ? 0 : sTotalTimeInQueueNanos.get() / tasksRun / 1000;
+        pw.println("WebView run queue:");
+        pw.println("  depth=" + sDepth.get() + " peakDepth=" + sPeakDepth.get());
+        pw.println("  tasksRun=" + tasksRun + " meanTimeInQueueUs=" + meanTimeInQueueUs +
+                " maxTimeInQueueUs=" + sMaxTimeInQueueNanos.get() / 1000);
+        pw.println("  coalescedOnOverflow=" + sCoalescedOnOverflow.get() +
+                " blockedOnOverflow=" + sBlockedOnOverflow.get() +
+                " overflowBeforeStart=" + sOverflowBeforeStart.get());
+        pw.flush();
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.webview.chromium;
+
+import android.os.SystemClock;
+import android.os.Trace;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Records how long each phase of WebView startup took, and on which thread, so that startup
+ * cost can be attributed from the field rather than guessed at. Phases also show up as trace
+ * sections.
+ *
+ * Usage:
+ *   long start = timings.beginPhase("loadLibrary");
+ *   ...
+ *   timings.endPhase("loadLibrary", start);
+ */
+final class StartupTimings {
+    private static final String TRACE_PREFIX = "WebViewChromium.startup.";
+
+    private static class Phase {
+        final String mName;
+        final String mThread;
+        final long mStartNanos;
+        final long mDurationNanos;
+
+        Phase(String name, String thread, long startNanos, long durationNanos) {
+            mName = name;
+            mThread = thread;
+            mStartNanos = startNanos;
+            mDurationNanos = durationNanos;
+        }
+    }
+
+    // All reported start times are relative to this.
+    private final long mOriginNanos = SystemClock.elapsedRealtimeNanos();
+
+    // Guarded by this.
+    private final ArrayList<Phase> mPhases = new ArrayList<Phase>();
+    private String mTriggerThread;
+    private boolean mTriggeredOnUiThread;
+    private boolean mWaitedForUiThread;
+
+    // Returns the start time to pass to endPhase(), which must be called on the same thread.
+    long beginPhase(String name) {
+        Trace.traceBegin(Trace.TRACE_TAG_WEBVIEW, TRACE_PREFIX + name);
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    void endPhase(String name, long startNanos) {
+        long durationNanos = SystemClock.elapsedRealtimeNanos() - startNanos;
+        Trace.traceEnd(Trace.TRACE_TAG_WEBVIEW);
+        Phase phase = new Phase(name, Thread.currentThread().getName(), startNanos,
+                durationNanos);
+        synchronized (this) {
+            mPhases.add(phase);
+        }
+    }
+
+    // Records the thread whose call first needed Chromium to be started, and whether it had to
+    // hand startup over to the UI thread and wait for it. Threads that arrive while startup is
+    // already under way are ignored.
+    synchronized void recordTrigger(boolean onUiThread, boolean waitedForUiThread) {
+        if (mTriggerThread != null) return;
+        mTriggerThread = Thread.currentThread().getName();
+        mTriggeredOnUiThread = onUiThread;
+        mWaitedForUiThread = waitedForUiThread;
+    }
+
+    // Dumps one line per phase, in the order the phases finished, with its start time relative
+    // to provider construction, its duration and its thread. A phase that ran more than once,
+    // e.g. "waitForUiThread" on several threads, gets a line each time.
+    synchronized void dump(PrintWriter pw) {
+        pw.println("WebView startup (times in us):");
+        for (Phase phase : mPhases) {
+            pw.println("  " + phase.mName + ": start=" + (phase.mStartNanos - mOriginNanos) / 1000 +
+                    " duration=" + phase.mDurationNanos / 1000 + " thread=" + phase.mThread);
+        }
+        if (mTriggerThread != null) {
+            pw.println("  triggerThread=" + mTriggerThread +
+                    " triggeredOnUiThread=" + mTriggeredOnUiThread +
+                    " waitedForUiThread=" + mWaitedForUiThread);
+        }
+        pw.flush();
+    }
+}
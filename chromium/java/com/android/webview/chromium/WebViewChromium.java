@@ -19,6 +19,7 @@ package com.android.webview.chromium;
 import android.content.Context;
 import android.content.ContextWrapper;
 import android.content.pm.PackageManager;
+import android.content.res.AssetManager;
 import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
@@ -34,11 +35,14 @@ import android.os.Bundle;
 import android.os.Looper;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
+import android.os.Trace;
 import android.print.PrintDocumentAdapter;
 import android.text.TextUtils;
 import android.util.Base64;
 import android.util.Log;
 import android.view.HardwareCanvas;
+import android.view.InputEvent;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
 import android.view.MotionEvent;
@@ -79,12 +83,19 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.lang.annotation.Annotation;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
+import java.util.WeakHashMap;
 
 /**
  * This class is the delegate to which WebViewProxy forwards all API calls.
@@ -97,36 +108,367 @@ import java.util.Queue;
 class WebViewChromium implements WebViewProvider,
           WebViewProvider.ScrollDelegate, WebViewProvider.ViewDelegate, SmartClipProvider {
 
+    // Opcodes for the View callbacks that are queued as CommandRing records rather than as
+    // Runnables, as they are posted often enough for the allocations to matter.
+    private static final int CMD_RUN_TASK = 0;
+    private static final int CMD_ON_OVER_SCROLLED = 1;
+    private static final int CMD_ON_SIZE_CHANGED = 2;
+    private static final int CMD_ON_WINDOW_VISIBILITY_CHANGED = 3;
+    private static final int CMD_ON_WINDOW_FOCUS_CHANGED = 4;
+    private static final int CMD_RUN_IDEMPOTENT_TASK = 5;
+
+    // Keys of the idempotent setters queued with addIdempotentTask(). Of consecutive calls for a
+    // key with no other command queued in between, only the latest is replayed.
+    private static final int KEY_SET_BACKGROUND_COLOR = 0;
+    private static final int KEY_SET_LAYER_TYPE = 1;
+    private static final int KEY_SET_SCROLL_BAR_STYLE = 2;
+    private static final int KEY_SET_OVER_SCROLL_MODE = 3;
+    private static final int KEY_SET_NETWORK_AVAILABLE = 4;
+    private static final int KEY_ON_SIZE_CHANGED = 5;
+    private static final int KEY_SET_HORIZONTAL_SCROLLBAR_OVERLAY = 6;
+    private static final int KEY_SET_VERTICAL_SCROLLBAR_OVERLAY = 7;
+    private static final int KEY_SET_PICTURE_LISTENER = 8;
+    // The following are only coalesced before Chromium has started or once the run queue is
+    // full.
+    private static final int KEY_ON_OVER_SCROLLED = 9;
+    private static final int KEY_ON_WINDOW_VISIBILITY_CHANGED = 10;
+    private static final int KEY_ON_WINDOW_FOCUS_CHANGED = 11;
+    private static final int NUM_IDEMPOTENT_KEYS = 12;
+
+    // The value an idempotent task marker in the run queue applies. Replaced in place while no
+    // other command has been queued after the marker. Guarded by the run queue's
+    // mIdempotentLock.
+    private static class PendingIdempotentTask {
+        Runnable mTask;
+    }
+
     private class WebViewChromiumRunQueue {
+        // Upper bound on the time a single posted drain spends running tasks before it yields
+        // back to the Looper. Keeps a large backlog from stalling the UI thread for several
+        // frames; whatever is left over is picked up by a follow-up drain message.
+        private static final long DRAIN_BUDGET_MS = 8;
+        // Number of preallocated command records. Anything queued beyond that spills over into
+        // mOverflow until the UI thread catches up.
+        private static final int COMMAND_RING_CAPACITY = 64;
+        // Longest a producer waits for room in a full queue before adding to it regardless, so
+        // that backpressure can't turn into a deadlock with a blocked UI thread.
+        private static final long MAX_OVERFLOW_WAIT_MS = 4000;
+
         public WebViewChromiumRunQueue() {
-            mQueue = new ConcurrentLinkedQueue<Runnable>();
+            mCapacity = mFactory.getRunQueueCapacity();
+            mCommands = new CommandRing(COMMAND_RING_CAPACITY);
+            mOverflow = new ConcurrentLinkedQueue<CommandRing.Command>();
+            mIdempotentLock = new Object();
+            mQueuedIdempotentTasks = new PendingIdempotentTask[NUM_IDEMPOTENT_KEYS];
+            mIdempotentTaskEpochs = new long[NUM_IDEMPOTENT_KEYS];
+            mEpoch = new AtomicLong();
+            mPendingTasks = new AtomicInteger();
+            mSpaceLock = new Object();
+            mDrainPending = new AtomicBoolean();
+            mDrainTask = new Runnable() {
+                @Override
+                public void run() {
+                    // Clear the flag before draining so that tasks added while we run schedule
+                    // another drain rather than being stranded.
+                    mDrainPending.set(false);
+                    drainQueue(true);
+                }
+            };
         }
 
         public void addTask(Runnable task) {
-            mQueue.add(task);
-            if (mFactory.hasStarted()) {
-                ThreadUtils.runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        drainQueue();
-                    }
-                });
+            addCommand(CMD_RUN_TASK, 0, 0, 0, 0, task);
+        }
+
+        // Queues a task that sets state which only the latest value of matters. If the last
+        // task queued for |key| hasn't run yet and no other command has been queued since, it
+        // is replaced by |task|, which then runs in its place. Otherwise |task| is queued at
+        // the tail like any other command, so that it never runs ahead of a call made before
+        // it (e.g. a loadUrl() after the first setter) or after one made after it.
+        public void addIdempotentTask(int key, Runnable task) {
+            PendingIdempotentTask pending;
+            synchronized (mIdempotentLock) {
+                pending = mQueuedIdempotentTasks[key];
+                if (pending != null && mIdempotentTaskEpochs[key] == mEpoch.get()) {
+                    pending.mTask = task;
+                    return;
+                }
+                pending = new PendingIdempotentTask();
+                pending.mTask = task;
+                mQueuedIdempotentTasks[key] = pending;
+                mIdempotentTaskEpochs[key] = mEpoch.get();
+            }
+            addCommand(CMD_RUN_IDEMPOTENT_TASK, key, 0, 0, 0, pending);
+        }
+
+        // Runs the task of the idempotent task marker |pending| queued for |key|.
+        private void runIdempotentTask(int key, PendingIdempotentTask pending) {
+            Runnable task;
+            synchronized (mIdempotentLock) {
+                task = pending.mTask;
+                pending.mTask = null;
+                if (mQueuedIdempotentTasks[key] == pending) mQueuedIdempotentTasks[key] = null;
+            }
+            if (task != null) task.run();
+        }
+
+        // Queues a command to be interpreted by runCommand() on the UI thread.
+        //
+        // Before Chromium has started, and once mCapacity commands are outstanding, idempotent
+        // View callbacks are coalesced with any of the same kind still queued. Past mCapacity
+        // everything else waits for the UI thread to make room, or, before Chromium has
+        // started, is queued regardless; see waitForSpace().
+        // Idempotent task markers are always added; there are at most NUM_IDEMPOTENT_KEYS more
+        // of them than there are other commands queued.
+        public void addCommand(final int opcode, final int arg0, final int arg1, final int arg2,
+                final int arg3, final Object object) {
+            boolean full = mPendingTasks.get() >= mCapacity;
+            if (opcode != CMD_RUN_IDEMPOTENT_TASK && (full || !mFactory.hasStarted())) {
+                int key = getOverflowCoalescingKey(opcode);
+                if (key >= 0) {
+                    if (full) RunQueueStats.recordCoalescedOnOverflow();
+                    addIdempotentTask(key, new Runnable() {
+                        @Override
+                        public void run() {
+                            runCommand(opcode, arg0, arg1, arg2, arg3, object);
+                        }
+                    });
+                    return;
+                }
+                if (full) waitForSpace();
+            }
+            if (opcode != CMD_RUN_IDEMPOTENT_TASK) {
+                // Idempotent tasks queued before this must not be replaced by later calls.
+                mEpoch.incrementAndGet();
+            }
+            mPendingTasks.incrementAndGet();
+            RunQueueStats.recordEnqueue();
+            long now = System.nanoTime();
+            // Once anything has spilled into mOverflow keep appending there until it has been
+            // drained, so that commands still run in the order they were added.
+            if (!mOverflow.isEmpty() ||
+                    !mCommands.offer(opcode, arg0, arg1, arg2, arg3, object, now)) {
+                mOverflow.add(new CommandRing.Command(opcode, arg0, arg1, arg2, arg3, object, now));
+            }
+            if (mFactory.hasStarted() && !mHeld) {
+                if (ThreadUtils.runningOnUiThread()) {
+                    drainQueue();
+                } else {
+                    scheduleDrain();
+                }
             }
         }
 
         public void drainQueue() {
-            if (mQueue == null || mQueue.isEmpty()) {
+            drainQueue(false);
+        }
+
+        // Keeps everything queued from now on from running until release() is called, even
+        // once Chromium has started. Used to defer creating AwContents.
+        public void hold() {
+            mHeld = true;
+        }
+
+        public void release() {
+            if (!mHeld) return;
+            mHeld = false;
+            if (mFactory.hasStarted()) {
+                if (ThreadUtils.runningOnUiThread()) {
+                    drainQueue();
+                } else {
+                    scheduleDrain();
+                }
+            }
+        }
+
+        public boolean isHeld() {
+            return mHeld;
+        }
+
+        // Posts a single drain message for a whole burst of addTask() calls.
+        private void scheduleDrain() {
+            if (mDrainPending.compareAndSet(false, true)) {
+                ThreadUtils.postOnUiThread(mDrainTask);
+            }
+        }
+
+        private int getOverflowCoalescingKey(int opcode) {
+            switch (opcode) {
+                case CMD_ON_OVER_SCROLLED:
+                    return KEY_ON_OVER_SCROLLED;
+                case CMD_ON_SIZE_CHANGED:
+                    return KEY_ON_SIZE_CHANGED;
+                case CMD_ON_WINDOW_VISIBILITY_CHANGED:
+                    return KEY_ON_WINDOW_VISIBILITY_CHANGED;
+                case CMD_ON_WINDOW_FOCUS_CHANGED:
+                    return KEY_ON_WINDOW_FOCUS_CHANGED;
+                default:
+                    return -1;
+            }
+        }
+
+        private void waitForSpace() {
+            // A held queue won't drain by itself either.
+            release();
+            if (!mFactory.hasStarted()) {
+                // Nothing drains the queue until Chromium has started, and starting it from here
+                // would pick the thread it binds to, which init() deliberately leaves to the
+                // app's first navigation. So until then the queue is unbounded: only idempotent
+                // setters and View callbacks are coalesced, and every other call is kept.
+                RunQueueStats.recordOverflowBeforeStart();
+                if (!mWarnedOverflowBeforeStart) {
+                    mWarnedOverflowBeforeStart = true;
+                    Log.w(TAG, "More than " + mCapacity + " calls queued before Chromium " +
+                            "started; the queue is not bounded until it starts.");
+                }
                 return;
             }
+            // On the UI thread the queue is drained synchronously as soon as we add to it.
+            if (ThreadUtils.runningOnUiThread()) return;
+
+            RunQueueStats.recordBlockedOnOverflow();
+            long deadline = SystemClock.uptimeMillis() + MAX_OVERFLOW_WAIT_MS;
+            synchronized (mSpaceLock) {
+                mBlockedProducers++;
+                try {
+                    while (mPendingTasks.get() >= mCapacity) {
+                        long remaining = deadline - SystemClock.uptimeMillis();
+                        if (remaining <= 0) {
+                            Log.w(TAG, "Timed out waiting for room in the run queue.");
+                            break;
+                        }
+                        try {
+                            mSpaceLock.wait(remaining);
+                        } catch (InterruptedException e) {
+                            // Keep waiting until the deadline.
+                        }
+                    }
+                } finally {
+                    mBlockedProducers--;
+                }
+            }
+        }
 
-            Runnable task = mQueue.poll();
-            while(task != null) {
-                task.run();
-                task = mQueue.poll();
+        private void onCommandFinished(long enqueueTimeNanos) {
+            mPendingTasks.decrementAndGet();
+            RunQueueStats.recordDequeue(System.nanoTime() - enqueueTimeNanos);
+            // mBlockedProducers is read after the decrement above, and written by producers
+            // before they re-check mPendingTasks, so a waiting producer can't miss the wakeup.
+            if (mBlockedProducers > 0) {
+                synchronized (mSpaceLock) {
+                    mSpaceLock.notifyAll();
+                }
             }
         }
 
-        private Queue<Runnable> mQueue;
+        // True if tasks have been added that have not finished running yet.
+        public boolean hasPendingTasks() {
+            return mPendingTasks.get() != 0;
+        }
+
+        private void drainQueue(boolean budgeted) {
+            if (mHeld) return;
+            long deadline = SystemClock.uptimeMillis() + DRAIN_BUDGET_MS;
+            int tasksRun = 0;
+            while (runNextCommand()) {
+                tasksRun++;
+                if (budgeted && SystemClock.uptimeMillis() >= deadline) {
+                    if (mCommands.peek() != null || !mOverflow.isEmpty()) {
+                        scheduleDrain();
+                    }
+                    break;
+                }
+            }
+            if (tasksRun > 0) {
+                Trace.traceCounter(Trace.TRACE_TAG_WEBVIEW, "WebViewChromium.tasksPerDrain",
+                        tasksRun);
+            }
+        }
+
+        // Runs the oldest queued command, if any. Commands in the ring are always older than
+        // those in mOverflow.
+        private boolean runNextCommand() {
+            CommandRing.Command command = mCommands.peek();
+            if (command != null) {
+                // Copy the record out and release it before running it, as the command may
+                // well queue (and so drain) further commands re-entrantly.
+                int opcode = command.mOpcode;
+                int arg0 = command.mArg0;
+                int arg1 = command.mArg1;
+                int arg2 = command.mArg2;
+                int arg3 = command.mArg3;
+                Object object = command.mObject;
+                long enqueueTimeNanos = command.mEnqueueTimeNanos;
+                mCommands.release(command);
+                try {
+                    runCommand(opcode, arg0, arg1, arg2, arg3, object);
+                } finally {
+                    onCommandFinished(enqueueTimeNanos);
+                }
+                return true;
+            }
+            command = mOverflow.poll();
+            if (command == null) return false;
+            try {
+                runCommand(command.mOpcode, command.mArg0, command.mArg1, command.mArg2,
+                        command.mArg3, command.mObject);
+            } finally {
+                onCommandFinished(command.mEnqueueTimeNanos);
+            }
+            return true;
+        }
+
+        private void runCommand(int opcode, int arg0, int arg1, int arg2, int arg3,
+                Object object) {
+            switch (opcode) {
+                case CMD_RUN_TASK:
+                    ((Runnable) object).run();
+                    break;
+                case CMD_ON_OVER_SCROLLED:
+                    onOverScrolled(arg0, arg1, arg2 != 0, arg3 != 0);
+                    break;
+                case CMD_ON_SIZE_CHANGED:
+                    onSizeChanged(arg0, arg1, arg2, arg3);
+                    break;
+                case CMD_ON_WINDOW_VISIBILITY_CHANGED:
+                    onWindowVisibilityChanged(arg0);
+                    break;
+                case CMD_ON_WINDOW_FOCUS_CHANGED:
+                    onWindowFocusChanged(arg0 != 0);
+                    break;
+                case CMD_RUN_IDEMPOTENT_TASK:
+                    runIdempotentTask(arg0, (PendingIdempotentTask) object);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown command " + opcode);
+            }
+        }
+
+        // Maximum number of outstanding commands before addCommand() applies backpressure.
+        private final int mCapacity;
+        private final CommandRing mCommands;
+        private final Queue<CommandRing.Command> mOverflow;
+        // Guards mQueuedIdempotentTasks, mIdempotentTaskEpochs and PendingIdempotentTask.mTask.
+        private final Object mIdempotentLock;
+        // Last task marker queued per idempotent key, or null once it has run.
+        private final PendingIdempotentTask[] mQueuedIdempotentTasks;
+        // Value of mEpoch when each key's marker was queued.
+        private final long[] mIdempotentTaskEpochs;
+        // Incremented for every command other than an idempotent task marker.
+        private final AtomicLong mEpoch;
+        // Number of tasks added but not yet run to completion, including one being run.
+        private final AtomicInteger mPendingTasks;
+        // Notified when a command finishes while producers are waiting for room.
+        private final Object mSpaceLock;
+        // Number of producers waiting in waitForSpace().
+        private volatile int mBlockedProducers;
+        // Set while a drain message is posted to the UI thread but has not run yet.
+        private final AtomicBoolean mDrainPending;
+        private final Runnable mDrainTask;
+        // While set, commands are queued but not run; see hold().
+        private volatile boolean mHeld;
+        // Whether waitForSpace() has logged that the queue outgrew mCapacity before startup.
+        private volatile boolean mWarnedOverflowBeforeStart;
     }
 
     private WebViewChromiumRunQueue mRunQueue;
@@ -153,6 +495,9 @@ class WebViewChromium implements WebViewProvider,
 
     private WebViewChromiumFactoryProvider mFactory;
 
+    // Non-null if input received off the UI thread is forwarded asynchronously.
+    private final AsyncInputForwarder mAsyncInputForwarder;
+
     private static boolean sRecordWholeDocumentEnabledByApi = false;
     static void enableSlowWholeDocumentDraw() {
         sRecordWholeDocumentEnabledByApi = true;
@@ -168,30 +513,96 @@ class WebViewChromium implements WebViewProvider,
         mAppTargetSdkVersion = mWebView.getContext().getApplicationInfo().targetSdkVersion;
         mFactory = factory;
         mRunQueue = new WebViewChromiumRunQueue();
-        String webViewAssetPath = WebViewFactory.getLoadedPackageInfo().applicationInfo.sourceDir;
-        mWebView.getContext().getAssets().addAssetPath(webViewAssetPath);
+        mAsyncInputForwarder = mFactory.isAsyncInputForwardingEnabled() ?
+                new AsyncInputForwarder(new InputForwarderTarget()) : null;
+        addWebViewAssetPath(mWebView.getContext().getAssets());
+    }
+
+    // AssetManagers the WebView APK has already been added to, so that creating more WebViews
+    // in the same Activity doesn't add it again. Weakly held; AssetManager uses identity equality.
+    private static final Set<AssetManager> sAssetManagersWithWebViewPath =
+            Collections.newSetFromMap(new WeakHashMap<AssetManager, Boolean>());
+    // Guarded by sAssetManagersWithWebViewPath.
+    private static String sWebViewAssetPath;
+
+    private static void addWebViewAssetPath(AssetManager assets) {
+        synchronized (sAssetManagersWithWebViewPath) {
+            if (!sAssetManagersWithWebViewPath.add(assets)) return;
+            if (sWebViewAssetPath == null) {
+                sWebViewAssetPath =
+                        WebViewFactory.getLoadedPackageInfo().applicationInfo.sourceDir;
+            }
+            assets.addAssetPath(sWebViewAssetPath);
+        }
     }
 
     static void completeWindowCreation(WebView parent, WebView child) {
-        AwContents parentContents = ((WebViewChromium) parent.getWebViewProvider()).mAwContents;
-        AwContents childContents =
-                child == null ? null : ((WebViewChromium) child.getWebViewProvider()).mAwContents;
-        parentContents.supplyContentsForPopup(childContents);
+        WebViewChromium parentProvider = (WebViewChromium) parent.getWebViewProvider();
+        parentProvider.ensureAwContentsCreated();
+        AwContents childContents = null;
+        if (child != null) {
+            WebViewChromium childProvider = (WebViewChromium) child.getWebViewProvider();
+            childProvider.ensureAwContentsCreated();
+            childContents = childProvider.mAwContents;
+        }
+        parentProvider.mAwContents.supplyContentsForPopup(childContents);
     }
 
-    private <T> T runBlockingFuture(FutureTask<T> task) {
+    // Names the call site of a blocking call after the WebViewChromium method that made it.
+    // Only used the first time a call site is seen, so walking the stack is affordable.
+    private static final BlockingCallStats.NameResolver sBlockingCallerResolver =
+            new BlockingCallStats.NameResolver() {
+        @Override
+        public String resolveName() {
+            for (StackTraceElement frame : new Throwable().getStackTrace()) {
+                if (!WebViewChromium.class.getName().equals(frame.getClassName())) continue;
+                String method = frame.getMethodName();
+                if (!method.equals("runBlockingFuture") &&
+                        !method.equals("runVoidTaskOnUiThreadBlocking") &&
+                        !method.equals("runOnUiThreadBlocking")) {
+                    return method;
+                }
+            }
+            return "unknown";
+        }
+    };
+
+    // |callSite| is the class of the task passed in by the caller, and identifies the
+    // WebViewProvider method that is blocking for the purpose of BlockingCallStats.
+    private <T> T runBlockingFuture(FutureTask<T> task, Class<?> callSite) {
         if (!mFactory.hasStarted()) throw new RuntimeException("Must be started before we block!");
+        if (mRunQueue.isHeld()) {
+            createLazyAwContents();
+            if (ThreadUtils.runningOnUiThread()) {
+                // We only got here because the queue was held, and creating AwContents has
+                // drained it, so the task can just run now.
+                task.run();
+                try {
+                    return task.get();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
         if (ThreadUtils.runningOnUiThread()) {
             throw new IllegalStateException("This method should only be called off the UI thread");
         }
+        BlockingCallStats.Histogram stats =
+                BlockingCallStats.forCallSite(callSite, sBlockingCallerResolver);
+        long startNanos = System.nanoTime();
+        boolean timedOut = false;
         mRunQueue.addTask(task);
         try {
             return task.get(4, TimeUnit.SECONDS);
         } catch (java.util.concurrent.TimeoutException e) {
+            timedOut = true;
             throw new RuntimeException("Probable deadlock detected due to WebView API being called "
-                    + "on incorrect thread while the UI thread is blocked.", e);
+                    + "on incorrect thread while the UI thread is blocked (in "
+                    + stats.getName() + ").", e);
         } catch (Exception e) {
             throw new RuntimeException(e);
+        } finally {
+            stats.record(System.nanoTime() - startNanos, timedOut);
         }
     }
 
@@ -200,11 +611,19 @@ class WebViewChromium implements WebViewProvider,
     // Do not call this method while on the UI thread!
     private void runVoidTaskOnUiThreadBlocking(Runnable r) {
         FutureTask<Void> task = new FutureTask<Void>(r, null);
-        runBlockingFuture(task);
+        runBlockingFuture(task, r.getClass());
     }
 
     private <T> T runOnUiThreadBlocking(Callable<T> c) {
-        return runBlockingFuture(new FutureTask<T>(c));
+        return runBlockingFuture(new FutureTask<T>(c), c.getClass());
+    }
+
+    // Returns the navigation state published on the UI thread if it can stand in for a blocking
+    // call from this thread, or null otherwise. It can't while tasks this WebView has queued are
+    // still outstanding, as the caller expects to observe their effects.
+    private NavigationState getNavigationStateForOffThreadGetter() {
+        if (mContentsClientAdapter == null || mRunQueue.hasPendingTasks()) return null;
+        return mContentsClientAdapter.getNavigationState();
     }
 
     // WebViewProvider methods --------------------------------------------------------------------
@@ -258,6 +677,10 @@ class WebViewChromium implements WebViewProvider,
             mWebSettings.getAwSettings().setZeroLayoutHeightDisablesViewportQuirk(true);
         }
 
+        if (mFactory.isLazyAwContentsEnabled()) {
+            // Don't create AwContents until it is needed; see createLazyAwContents().
+            mRunQueue.hold();
+        }
         mRunQueue.addTask(new Runnable() {
                 @Override
                 public void run() {
@@ -274,31 +697,60 @@ class WebViewChromium implements WebViewProvider,
     }
 
     // Wrap Context so that we can use resources from the webview resource apk.
+    // The class loader and layout inflater are created on first use and then kept, as view
+    // inflation for popups, selection handles etc. asks for them repeatedly.
     private static Context resourcesContextWrapper(final Context ctx) {
         return new ContextWrapper(ctx) {
+            private ClassLoader mClassLoader;
+            private LayoutInflater mLayoutInflater;
+
             @Override
-            public ClassLoader getClassLoader() {
+            public synchronized ClassLoader getClassLoader() {
+                if (mClassLoader != null) return mClassLoader;
                 final ClassLoader appCl = getBaseContext().getClassLoader();
                 final ClassLoader webViewCl = this.getClass().getClassLoader();
-                return new ClassLoader() {
+                // Classes resolved by either loader, and names neither could resolve. Both are
+                // stable for the lifetime of the loaders, and remembering them saves repeated
+                // exception-driven lookups.
+                final Map<String, Class<?>> resolved = new ConcurrentHashMap<String, Class<?>>();
+                final Set<String> unresolved =
+                        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+                mClassLoader = new ClassLoader() {
                     @Override
                     protected Class<?> findClass(String name) throws ClassNotFoundException {
+                        Class<?> cls = resolved.get(name);
+                        if (cls != null) return cls;
+                        if (unresolved.contains(name)) throw new ClassNotFoundException(name);
                         // First look in the WebViewProvider class loader.
                         try {
-                            return webViewCl.loadClass(name);
+                            cls = webViewCl.loadClass(name);
                         } catch (ClassNotFoundException e) {
                             // Look in the app class loader; allowing it to throw ClassNotFoundException.
-                            return appCl.loadClass(name);
+                            try {
+                                cls = appCl.loadClass(name);
+                            } catch (ClassNotFoundException e2) {
+                                unresolved.add(name);
+                                throw e2;
+                            }
                         }
+                        resolved.put(name, cls);
+                        return cls;
                     }
                 };
+                return mClassLoader;
             }
 
             @Override
             public Object getSystemService(String name) {
                 if (name.equals(Context.LAYOUT_INFLATER_SERVICE)) {
-                    LayoutInflater i = (LayoutInflater) getBaseContext().getSystemService(name);
-                    return i.cloneInContext(this);
+                    synchronized (this) {
+                        if (mLayoutInflater == null) {
+                            LayoutInflater i =
+                                    (LayoutInflater) getBaseContext().getSystemService(name);
+                            mLayoutInflater = i.cloneInContext(this);
+                        }
+                        return mLayoutInflater;
+                    }
                 } else {
                     return getBaseContext().getSystemService(name);
                 }
@@ -308,10 +760,14 @@ class WebViewChromium implements WebViewProvider,
     }
 
     private void initForReal() {
+        // Note AwContents can't be pooled and reused across WebViews: the container view,
+        // internal access delegate, contents client and settings are all fixed at construction,
+        // and destroy() tears down its native side for good.
         Context ctx = resourcesContextWrapper(mWebView.getContext());
         mAwContents = new AwContents(mFactory.getBrowserContext(), mWebView, ctx,
                 new InternalAccessAdapter(), new WebViewNativeGLDelegate(),
                 mContentsClientAdapter, mWebSettings.getAwSettings());
+        mContentsClientAdapter.setAwContents(mAwContents);
 
         if (mAppTargetSdkVersion >= Build.VERSION_CODES.KITKAT) {
             // On KK and above, favicons are automatically downloaded as the method
@@ -336,13 +792,58 @@ class WebViewChromium implements WebViewProvider,
         mRunQueue.drainQueue();
     }
 
+    // In lazy mode, lets AwContents be created and the calls buffered in the meantime run.
+    // Called on the first attach, visibility, navigation, call that needs a result or direct
+    // use of mAwContents, whichever comes first. If Chromium has started, the queue is drained
+    // right away on its UI thread, or a drain is posted from other threads. Before that nothing
+    // happens until Chromium starts and drains the queue.
+    private void createLazyAwContents() {
+        mRunQueue.release();
+    }
+
+    // Creates AwContents now if Chromium has started but hasn't got round to initializing this
+    // WebView yet (see WebViewChromiumFactoryProvider.startWebViewsIncrementally()), or it is
+    // being held back in lazy mode. For the methods that use mAwContents without going through
+    // checkNeedsPost().
+    private void ensureAwContentsCreated() {
+        createLazyAwContents();
+        if (mAwContents != null || !mFactory.hasStarted()) return;
+        if (ThreadUtils.runningOnUiThread()) {
+            mRunQueue.drainQueue();
+            return;
+        }
+        runVoidTaskOnUiThreadBlocking(new Runnable() {
+            @Override
+            public void run() {
+                mRunQueue.drainQueue();
+            }
+        });
+    }
+
+    // Used to initialize WebViews the user can see first.
+    boolean isAttachedAndShown() {
+        return mWebView.isAttachedToWindow() && mWebView.isShown();
+    }
+
     private RuntimeException createThreadException() {
         return new IllegalStateException(
                 "Calling View methods on another thread than the UI thread.");
     }
 
+    // Whether an input event that needs posting can be forwarded without blocking the caller.
+    // Needs AwContents to exist already, as there is nothing to predict the result from before.
+    private boolean canForwardInputAsync() {
+        return mAsyncInputForwarder != null && mAwContents != null;
+    }
+
     private boolean checkNeedsPost() {
-        boolean needsPost = !mFactory.hasStarted() || !ThreadUtils.runningOnUiThread();
+        boolean needsPost = !mFactory.hasStarted() || !ThreadUtils.runningOnUiThread() ||
+                mRunQueue.isHeld();
+        if (!needsPost && mAwContents == null) {
+            // Chromium has started but hasn't got round to initializing this WebView yet (see
+            // WebViewChromiumFactoryProvider.startWebViewsIncrementally()), so do it now.
+            mRunQueue.drainQueue();
+        }
         if (!needsPost && mAwContents == null) {
             throw new IllegalStateException(
                     "AwContents must be created if we are not posting!");
@@ -367,7 +868,7 @@ class WebViewChromium implements WebViewProvider,
     @Override
     public void setHorizontalScrollbarOverlay(final boolean overlay) {
         if (checkNeedsPost()) {
-            mRunQueue.addTask(new Runnable() {
+            mRunQueue.addIdempotentTask(KEY_SET_HORIZONTAL_SCROLLBAR_OVERLAY, new Runnable() {
                 @Override
                 public void run() {
                     setHorizontalScrollbarOverlay(overlay);
@@ -381,7 +882,7 @@ class WebViewChromium implements WebViewProvider,
     @Override
     public void setVerticalScrollbarOverlay(final boolean overlay) {
         if (checkNeedsPost()) {
-            mRunQueue.addTask(new Runnable() {
+            mRunQueue.addIdempotentTask(KEY_SET_VERTICAL_SCROLLBAR_OVERLAY, new Runnable() {
                 @Override
                 public void run() {
                     setVerticalScrollbarOverlay(overlay);
@@ -507,7 +1008,7 @@ class WebViewChromium implements WebViewProvider,
         // Note that this purely toggles the JS navigator.online property.
         // It does not in affect chromium or network stack state in any way.
         if (checkNeedsPost()) {
-            mRunQueue.addTask(new Runnable() {
+            mRunQueue.addIdempotentTask(KEY_SET_NETWORK_AVAILABLE, new Runnable() {
                 @Override
                 public void run() {
                     setNetworkAvailable(networkUp);
@@ -561,6 +1062,7 @@ class WebViewChromium implements WebViewProvider,
         }
         if (inState == null) return null;
         if (!mAwContents.restoreState(inState)) return null;
+        mContentsClientAdapter.updateNavigationState();
         return copyBackForwardList();
     }
 
@@ -576,6 +1078,7 @@ class WebViewChromium implements WebViewProvider,
         if (mAppTargetSdkVersion < Build.VERSION_CODES.KITKAT &&
                 url != null && url.startsWith(JAVASCRIPT_SCHEME)) {
             mFactory.startYourEngines(true);
+            createLazyAwContents();
             if (checkNeedsPost()) {
                 mRunQueue.addTask(new Runnable() {
                     @Override
@@ -677,6 +1180,7 @@ class WebViewChromium implements WebViewProvider,
         // and if the app has not caused us to bind the Chromium UI thread to a background thread
         // we now bind Chromium's notion of the UI thread to the app main thread.
         mFactory.startYourEngines(true);
+        createLazyAwContents();
         if (checkNeedsPost()) {
             // Disallowed in WebView API for apps targetting a new SDK
             assert mAppTargetSdkVersion < Build.VERSION_CODES.JELLY_BEAN_MR2;
@@ -684,15 +1188,20 @@ class WebViewChromium implements WebViewProvider,
                 @Override
                 public void run() {
                     mAwContents.loadUrl(loadUrlParams);
+                    mContentsClientAdapter.updateNavigationState();
                 }
             });
             return;
         }
         mAwContents.loadUrl(loadUrlParams);
+        // Publish the new visible entry now rather than when the client callbacks arrive, so a
+        // getter called on another thread right after this sees it.
+        mContentsClientAdapter.updateNavigationState();
     }
 
     public void evaluateJavaScript(String script, ValueCallback<String> resultCallback) {
         checkThread();
+        ensureAwContentsCreated();
         mAwContents.evaluateJavaScript(script, resultCallback);
     }
 
@@ -729,6 +1238,7 @@ class WebViewChromium implements WebViewProvider,
         }
 
         mAwContents.stopLoading();
+        mContentsClientAdapter.updateNavigationState();
     }
 
     @Override
@@ -743,12 +1253,15 @@ class WebViewChromium implements WebViewProvider,
             return;
         }
         mAwContents.reload();
+        mContentsClientAdapter.updateNavigationState();
     }
 
     @Override
     public boolean canGoBack() {
         mFactory.startYourEngines(true);
         if (checkNeedsPost()) {
+            NavigationState state = getNavigationStateForOffThreadGetter();
+            if (state != null) return state.canGoBack();
             Boolean ret = runOnUiThreadBlocking(new Callable<Boolean>() {
                 @Override
                 public Boolean call() {
@@ -772,12 +1285,15 @@ class WebViewChromium implements WebViewProvider,
             return;
         }
         mAwContents.goBack();
+        mContentsClientAdapter.updateNavigationState();
     }
 
     @Override
     public boolean canGoForward() {
         mFactory.startYourEngines(true);
         if (checkNeedsPost()) {
+            NavigationState state = getNavigationStateForOffThreadGetter();
+            if (state != null) return state.canGoForward();
             Boolean ret = runOnUiThreadBlocking(new Callable<Boolean>() {
                 @Override
                 public Boolean call() {
@@ -801,6 +1317,7 @@ class WebViewChromium implements WebViewProvider,
             return;
         }
         mAwContents.goForward();
+        mContentsClientAdapter.updateNavigationState();
     }
 
     @Override
@@ -830,6 +1347,7 @@ class WebViewChromium implements WebViewProvider,
             return;
         }
         mAwContents.goBackOrForward(steps);
+        mContentsClientAdapter.updateNavigationState();
     }
 
     @Override
@@ -901,6 +1419,7 @@ class WebViewChromium implements WebViewProvider,
     public float getScale() {
         // No checkThread() as it is mostly thread safe (workaround for b/10652991).
         mFactory.startYourEngines(true);
+        ensureAwContentsCreated();
         return mAwContents.getScale();
     }
 
@@ -975,6 +1494,8 @@ class WebViewChromium implements WebViewProvider,
     public String getUrl() {
         mFactory.startYourEngines(true);
         if (checkNeedsPost()) {
+            NavigationState state = getNavigationStateForOffThreadGetter();
+            if (state != null) return state.getUrl();
             String ret = runOnUiThreadBlocking(new Callable<String>() {
                 @Override
                 public String call() {
@@ -992,6 +1513,8 @@ class WebViewChromium implements WebViewProvider,
     public String getOriginalUrl() {
         mFactory.startYourEngines(true);
         if (checkNeedsPost()) {
+            NavigationState state = getNavigationStateForOffThreadGetter();
+            if (state != null) return state.getOriginalUrl();
             String ret = runOnUiThreadBlocking(new Callable<String>() {
                 @Override
                 public String call() {
@@ -1009,6 +1532,8 @@ class WebViewChromium implements WebViewProvider,
     public String getTitle() {
         mFactory.startYourEngines(true);
         if (checkNeedsPost()) {
+            NavigationState state = getNavigationStateForOffThreadGetter();
+            if (state != null) return state.getTitle();
             String ret = runOnUiThreadBlocking(new Callable<String>() {
                 @Override
                 public String call() {
@@ -1024,6 +1549,8 @@ class WebViewChromium implements WebViewProvider,
     public Bitmap getFavicon() {
         mFactory.startYourEngines(true);
         if (checkNeedsPost()) {
+            NavigationState state = getNavigationStateForOffThreadGetter();
+            if (state != null) return state.getFavicon();
             Bitmap ret = runOnUiThreadBlocking(new Callable<Bitmap>() {
                 @Override
                 public Bitmap call() {
@@ -1102,6 +1629,7 @@ class WebViewChromium implements WebViewProvider,
             return;
         }
         mAwContents.onPause();
+        mContentsClientAdapter.updateNavigationState();
     }
 
     @Override
@@ -1116,12 +1644,15 @@ class WebViewChromium implements WebViewProvider,
             return;
         }
         mAwContents.onResume();
+        mContentsClientAdapter.updateNavigationState();
     }
 
     @Override
     public boolean isPaused() {
         mFactory.startYourEngines(true);
         if (checkNeedsPost()) {
+            NavigationState state = getNavigationStateForOffThreadGetter();
+            if (state != null) return state.isPaused();
             Boolean ret = runOnUiThreadBlocking(new Callable<Boolean>() {
                 @Override
                 public Boolean call() {
@@ -1181,6 +1712,7 @@ class WebViewChromium implements WebViewProvider,
             return;
         }
         mAwContents.clearHistory();
+        mContentsClientAdapter.updateNavigationState();
     }
 
     @Override
@@ -1367,7 +1899,7 @@ class WebViewChromium implements WebViewProvider,
     @Override
     public void setPictureListener(final WebView.PictureListener listener) {
         if (checkNeedsPost()) {
-            mRunQueue.addTask(new Runnable() {
+            mRunQueue.addIdempotentTask(KEY_SET_PICTURE_LISTENER, new Runnable() {
                 @Override
                 public void run() {
                     setPictureListener(listener);
@@ -1500,6 +2032,7 @@ class WebViewChromium implements WebViewProvider,
         mFactory.startYourEngines(true);
         // This is an L API and therefore we can enforce stricter threading constraints.
         checkThread();
+        ensureAwContentsCreated();
         return mAwContents.zoomBy(factor);
     }
 
@@ -1621,7 +2154,7 @@ class WebViewChromium implements WebViewProvider,
         if (mAwContents == null) return;
 
         if (checkNeedsPost()) {
-            mRunQueue.addTask(new Runnable() {
+            mRunQueue.addIdempotentTask(KEY_SET_OVER_SCROLL_MODE, new Runnable() {
                 @Override
                 public void run() {
                     setOverScrollMode(mode);
@@ -1635,7 +2168,7 @@ class WebViewChromium implements WebViewProvider,
     @Override
     public void setScrollBarStyle(final int style) {
         if (checkNeedsPost()) {
-            mRunQueue.addTask(new Runnable() {
+            mRunQueue.addIdempotentTask(KEY_SET_SCROLL_BAR_STYLE, new Runnable() {
                 @Override
                 public void run() {
                     setScrollBarStyle(style);
@@ -1659,12 +2192,8 @@ class WebViewChromium implements WebViewProvider,
     public void onOverScrolled(final int scrollX, final int scrollY, final boolean clampedX,
             final boolean clampedY) {
         if (checkNeedsPost()) {
-            mRunQueue.addTask(new Runnable() {
-                @Override
-                public void run() {
-                    onOverScrolled(scrollX, scrollY, clampedX, clampedY);
-                }
-            });
+            mRunQueue.addCommand(CMD_ON_OVER_SCROLLED, scrollX, scrollY, clampedX ? 1 : 0,
+                    clampedY ? 1 : 0, null);
             return;
         }
         mAwContents.onContainerViewOverScrolled(scrollX, scrollY, clampedX, clampedY);
@@ -1673,12 +2202,7 @@ class WebViewChromium implements WebViewProvider,
     @Override
     public void onWindowVisibilityChanged(final int visibility) {
         if (checkNeedsPost()) {
-            mRunQueue.addTask(new Runnable() {
-                @Override
-                public void run() {
-                    onWindowVisibilityChanged(visibility);
-                }
-            });
+            mRunQueue.addCommand(CMD_ON_WINDOW_VISIBILITY_CHANGED, visibility, 0, 0, 0, null);
             return;
         }
         mAwContents.onWindowVisibilityChanged(visibility);
@@ -1742,6 +2266,10 @@ class WebViewChromium implements WebViewProvider,
     public boolean onKeyMultiple(final int keyCode, final int repeatCount, final KeyEvent event) {
         mFactory.startYourEngines(false);
         if (checkNeedsPost()) {
+            if (canForwardInputAsync()) {
+                return mAsyncInputForwarder.forward(
+                        AsyncInputForwarder.KIND_KEY_MULTIPLE, event, repeatCount);
+            }
             boolean ret = runOnUiThreadBlocking(new Callable<Boolean>() {
                 @Override
                 public Boolean call() {
@@ -1758,6 +2286,10 @@ class WebViewChromium implements WebViewProvider,
     public boolean onKeyDown(final int keyCode, final KeyEvent event) {
         mFactory.startYourEngines(false);
         if (checkNeedsPost()) {
+            if (canForwardInputAsync()) {
+                return mAsyncInputForwarder.forward(
+                        AsyncInputForwarder.KIND_KEY_DOWN, event, 0);
+            }
             boolean ret = runOnUiThreadBlocking(new Callable<Boolean>() {
                 @Override
                 public Boolean call() {
@@ -1774,6 +2306,10 @@ class WebViewChromium implements WebViewProvider,
     public boolean onKeyUp(final int keyCode, final KeyEvent event) {
         mFactory.startYourEngines(false);
         if (checkNeedsPost()) {
+            if (canForwardInputAsync()) {
+                return mAsyncInputForwarder.forward(
+                        AsyncInputForwarder.KIND_KEY_UP, event, 0);
+            }
             boolean ret = runOnUiThreadBlocking(new Callable<Boolean>() {
                 @Override
                 public Boolean call() {
@@ -1792,6 +2328,7 @@ class WebViewChromium implements WebViewProvider,
         // point we must bind Chromium's UI thread to the current thread.
         mFactory.startYourEngines(false);
         checkThread();
+        ensureAwContentsCreated();
         mAwContents.onAttachedToWindow();
     }
 
@@ -1812,6 +2349,7 @@ class WebViewChromium implements WebViewProvider,
 
     @Override
     public void onVisibilityChanged(final View changedView, final int visibility) {
+        if (visibility == View.VISIBLE && mWebView.isShown()) createLazyAwContents();
         // The AwContents will find out the container view visibility before the first draw so we
         // can safely ignore onVisibilityChanged callbacks that happen before init().
         if (mAwContents == null) return;
@@ -1831,12 +2369,8 @@ class WebViewChromium implements WebViewProvider,
     @Override
     public void onWindowFocusChanged(final boolean hasWindowFocus) {
         if (checkNeedsPost()) {
-            mRunQueue.addTask(new Runnable() {
-                @Override
-                public void run() {
-                    onWindowFocusChanged(hasWindowFocus);
-                }
-            });
+            mRunQueue.addCommand(CMD_ON_WINDOW_FOCUS_CHANGED, hasWindowFocus ? 1 : 0, 0, 0, 0,
+                    null);
             return;
         }
         mAwContents.onWindowFocusChanged(hasWindowFocus);
@@ -1865,12 +2399,17 @@ class WebViewChromium implements WebViewProvider,
     @Override
     public void onSizeChanged(final int w, final int h, final int ow, final int oh) {
         if (checkNeedsPost()) {
-            mRunQueue.addTask(new Runnable() {
-                @Override
-                public void run() {
-                    onSizeChanged(w, h, ow, oh);
-                }
-            });
+            if (!mFactory.hasStarted()) {
+                // Only the final size matters once we start; replay just that one.
+                mRunQueue.addIdempotentTask(KEY_ON_SIZE_CHANGED, new Runnable() {
+                    @Override
+                    public void run() {
+                        onSizeChanged(w, h, ow, oh);
+                    }
+                });
+            } else {
+                mRunQueue.addCommand(CMD_ON_SIZE_CHANGED, w, h, ow, oh, null);
+            }
             return;
         }
         mAwContents.onSizeChanged(w, h, ow, oh);
@@ -1884,6 +2423,10 @@ class WebViewChromium implements WebViewProvider,
     public boolean dispatchKeyEvent(final KeyEvent event) {
         mFactory.startYourEngines(false);
         if (checkNeedsPost()) {
+            if (canForwardInputAsync()) {
+                return mAsyncInputForwarder.forward(
+                        AsyncInputForwarder.KIND_DISPATCH_KEY, event, 0);
+            }
             boolean ret = runOnUiThreadBlocking(new Callable<Boolean>() {
                 @Override
                 public Boolean call() {
@@ -1899,6 +2442,10 @@ class WebViewChromium implements WebViewProvider,
     public boolean onTouchEvent(final MotionEvent ev) {
         mFactory.startYourEngines(false);
         if (checkNeedsPost()) {
+            if (canForwardInputAsync()) {
+                return mAsyncInputForwarder.forward(
+                        AsyncInputForwarder.KIND_TOUCH, ev, 0);
+            }
             boolean ret = runOnUiThreadBlocking(new Callable<Boolean>() {
                 @Override
                 public Boolean call() {
@@ -1914,6 +2461,10 @@ class WebViewChromium implements WebViewProvider,
     public boolean onHoverEvent(final MotionEvent event) {
         mFactory.startYourEngines(false);
         if (checkNeedsPost()) {
+            if (canForwardInputAsync()) {
+                return mAsyncInputForwarder.forward(
+                        AsyncInputForwarder.KIND_HOVER, event, 0);
+            }
             boolean ret = runOnUiThreadBlocking(new Callable<Boolean>() {
                 @Override
                 public Boolean call() {
@@ -1929,6 +2480,10 @@ class WebViewChromium implements WebViewProvider,
     public boolean onGenericMotionEvent(final MotionEvent event) {
         mFactory.startYourEngines(false);
         if (checkNeedsPost()) {
+            if (canForwardInputAsync()) {
+                return mAsyncInputForwarder.forward(
+                        AsyncInputForwarder.KIND_GENERIC_MOTION, event, 0);
+            }
             boolean ret = runOnUiThreadBlocking(new Callable<Boolean>() {
                 @Override
                 public Boolean call() {
@@ -1997,7 +2552,7 @@ class WebViewChromium implements WebViewProvider,
     public void setBackgroundColor(final int color) {
         mFactory.startYourEngines(false);
         if (checkNeedsPost()) {
-            ThreadUtils.postOnUiThread(new Runnable() {
+            mRunQueue.addIdempotentTask(KEY_SET_BACKGROUND_COLOR, new Runnable() {
                 @Override
                 public void run() {
                     setBackgroundColor(color);
@@ -2014,7 +2569,7 @@ class WebViewChromium implements WebViewProvider,
         // is still null. We set the layer type in initForReal in that case.
         if (mAwContents == null) return;
         if (checkNeedsPost()) {
-            ThreadUtils.postOnUiThread(new Runnable() {
+            mRunQueue.addIdempotentTask(KEY_SET_LAYER_TYPE, new Runnable() {
                 @Override
                 public void run() {
                     setLayerType(layerType, paint);
@@ -2032,10 +2587,12 @@ class WebViewChromium implements WebViewProvider,
     }
 
     public void onStartTemporaryDetach() {
+        ensureAwContentsCreated();
         mAwContents.onStartTemporaryDetach();
     }
 
     public void onFinishTemporaryDetach() {
+        ensureAwContentsCreated();
         mAwContents.onFinishTemporaryDetach();
     }
 
@@ -2139,9 +2696,38 @@ class WebViewChromium implements WebViewProvider,
     //@Override TODO(sgurun) commenting this out to have master-gpl compiling.
     public PrintDocumentAdapter createPrintDocumentAdapter(String documentName) {
         checkThread();
+        ensureAwContentsCreated();
         return new AwPrintDocumentAdapter(mAwContents.getPdfExporter(), documentName);
     }
 
+    // AsyncInputForwarder.Target implementation --------------------------------------
+    private class InputForwarderTarget implements AsyncInputForwarder.Target {
+        @Override
+        public boolean dispatchForwardedEvent(int kind, InputEvent event, int repeatCount) {
+            switch (kind) {
+                case AsyncInputForwarder.KIND_TOUCH:
+                    return onTouchEvent((MotionEvent) event);
+                case AsyncInputForwarder.KIND_HOVER:
+                    return onHoverEvent((MotionEvent) event);
+                case AsyncInputForwarder.KIND_GENERIC_MOTION:
+                    return onGenericMotionEvent((MotionEvent) event);
+                case AsyncInputForwarder.KIND_DISPATCH_KEY:
+                    return dispatchKeyEvent((KeyEvent) event);
+                case AsyncInputForwarder.KIND_KEY_DOWN:
+                    KeyEvent keyDown = (KeyEvent) event;
+                    return onKeyDown(keyDown.getKeyCode(), keyDown);
+                case AsyncInputForwarder.KIND_KEY_UP:
+                    KeyEvent keyUp = (KeyEvent) event;
+                    return onKeyUp(keyUp.getKeyCode(), keyUp);
+                case AsyncInputForwarder.KIND_KEY_MULTIPLE:
+                    KeyEvent keyMultiple = (KeyEvent) event;
+                    return onKeyMultiple(keyMultiple.getKeyCode(), repeatCount, keyMultiple);
+                default:
+                    throw new IllegalStateException("Unknown input event kind " + kind);
+            }
+        }
+    }
+
     // AwContents.NativeGLDelegate implementation --------------------------------------
     private class WebViewNativeGLDelegate implements AwContents.NativeGLDelegate {
         @Override
@@ -2253,6 +2839,7 @@ class WebViewChromium implements WebViewProvider,
     @Override
     public void extractSmartClipData(int x, int y, int width, int height) {
         checkThread();
+        ensureAwContentsCreated();
         mAwContents.extractSmartClipData(x, y, width, height);
     }
 
@@ -2260,6 +2847,7 @@ class WebViewChromium implements WebViewProvider,
     @Override
     public void setSmartClipResultHandler(final Handler resultHandler) {
         checkThread();
+        ensureAwContentsCreated();
         mAwContents.setSmartClipResultHandler(resultHandler);
     }
 
@@ -24,14 +24,20 @@ import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.content.res.Configuration;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Build;
-import android.os.FileUtils;
+import android.os.Bundle;
+import android.os.Handler;
 import android.os.Looper;
+import android.os.MessageQueue;
 import android.os.StrictMode;
 import android.os.SystemProperties;
+import android.view.Choreographer;
 import android.os.Trace;
 import android.util.Log;
+import android.util.LogWriter;
 import android.webkit.CookieManager;
 import android.webkit.GeolocationPermissions;
 import android.webkit.WebIconDatabase;
@@ -66,63 +72,236 @@ import org.chromium.content.browser.ContentViewStatics;
 import org.chromium.content.browser.ResourceExtractor;
 
 import java.io.File;
+import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 public class WebViewChromiumFactoryProvider implements WebViewFactoryProvider {
 
     private static final String TAG = "WebViewChromiumFactoryProvider";
+    // Startup timings and run queue and blocking call stats are logged under this tag each time
+    // the app's UI is hidden, if it is loggable at DEBUG when the provider is created, e.g.
+    // after "adb shell setprop log.tag.WebViewChromiumStats DEBUG".
+    private static final String STATS_TAG = "WebViewChromiumStats";
 
     private static final String CHROMIUM_PREFS_NAME = "WebViewChromiumPrefs";
     private static final String VERSION_CODE_PREF = "lastVersionCodeUsed";
+    private static final String DEFAULT_USER_AGENT_PREF = "defaultUserAgent";
+    private static final String DEFAULT_USER_AGENT_KEY_PREF = "defaultUserAgentKey";
     private static final String COMMAND_LINE_FILE = "/data/local/tmp/webview-command-line";
 
+    // <meta-data> names an app can set on its <application> element to opt in to non-default
+    // behavior.
+    private static final String METADATA_ASYNC_INPUT_FORWARDING =
+            "com.android.webview.chromium.AsyncInputForwarding";
+    private static final String METADATA_RUN_QUEUE_CAPACITY =
+            "com.android.webview.chromium.RunQueueCapacity";
+    private static final String METADATA_LAZY_AW_CONTENTS =
+            "com.android.webview.chromium.LazyAwContents";
+    private static final String METADATA_ASYNC_LIBRARY_LOAD =
+            "com.android.webview.chromium.AsyncLibraryLoad";
+    private static final String METADATA_PREWARM =
+            "com.android.webview.chromium.Prewarm";
+
+    // Initialization tiers, see ensureInitialized(). Each includes the ones before it.
+    // The native library is loaded and initialized; enough for static helpers.
+    static final int INIT_TIER_LIBRARY = 1;
+    // The browser process has been started on the UI thread. Paths and resources are set up on
+    // the way there; nothing needs them without the browser process, so they aren't a tier of
+    // their own.
+    static final int INIT_TIER_BROWSER = 2;
+
+    // Default number of API calls a WebView buffers for the UI thread before applying
+    // backpressure to the caller.
+    private static final int DEFAULT_RUN_QUEUE_CAPACITY = 512;
+
     // Guards accees to the other members, and is notifyAll() signalled on the UI thread
     // when the chromium process has been started.
     private final Object mLock = new Object();
 
     // Initialization guarded by mLock.
     private AwBrowserContext mBrowserContext;
-    private Statics mStaticMethods;
-    private GeolocationPermissionsAdapter mGeolocationPermissions;
-    private CookieManagerAdapter mCookieManager;
-    private WebIconDatabaseAdapter mWebIconDatabase;
-    private WebStorageAdapter mWebStorage;
-    private WebViewDatabaseAdapter mWebViewDatabase;
     private AwDevToolsServer mDevToolsServer;
 
+    // Initialization guarded by mLock, but published through volatile writes so that once
+    // created they can be returned without taking mLock. Some apps fetch e.g. the
+    // CookieManager for every request, and would otherwise stall behind Chromium startup.
+    private volatile Statics mStaticMethods;
+    private volatile GeolocationPermissionsAdapter mGeolocationPermissions;
+    private volatile CookieManagerAdapter mCookieManager;
+    private volatile WebIconDatabaseAdapter mWebIconDatabase;
+    private volatile WebStorageAdapter mWebStorage;
+    private volatile WebViewDatabaseAdapter mWebViewDatabase;
+
     private ArrayList<WeakReference<WebViewChromium>> mWebViewsToStart =
               new ArrayList<WeakReference<WebViewChromium>>();
 
-    // Read/write protected by mLock.
-    private boolean mStarted;
+    // Written under mLock; volatile as hasStarted() reads it without.
+    private volatile boolean mStarted;
 
     private SharedPreferences mWebViewPrefs;
 
+    // The default user agent only changes with the WebView package and the OS build, so it is
+    // cached in mWebViewPrefs under this key. Null if the version code is unavailable, or if a
+    // debug command line file is present, since its switches can change the user agent too.
+    private String mUserAgentCacheKey;
+    private volatile String mDefaultUserAgent;
+
+    private final StartupTimings mStartupTimings = new StartupTimings();
+
+    private final FutureTask<Void> mLoadLibrariesTask = new FutureTask<Void>(
+            new Callable<Void>() {
+                @Override
+                public Void call() {
+                    loadLibraries();
+                    return null;
+                }
+            });
+
+    private final FutureTask<Void> mCheckVersionTask = new FutureTask<Void>(
+            new Callable<Void>() {
+                @Override
+                public Void call() {
+                    checkVersion();
+                    return null;
+                }
+            });
+
+    // The thread-agnostic tiers of Chromium startup, see initLibrary() and initResources().
+    private final FutureTask<Void> mInitLibraryTask = new FutureTask<Void>(
+            new Callable<Void>() {
+                @Override
+                public Void call() {
+                    runAndJoin(mLoadLibrariesTask);
+                    runAndJoin(mCheckVersionTask);
+                    initLibrary();
+                    return null;
+                }
+            });
+    private final FutureTask<Void> mInitResourcesTask = new FutureTask<Void>(
+            new Callable<Void>() {
+                @Override
+                public Void call() {
+                    runAndJoin(mInitLibraryTask);
+                    initResources();
+                    return null;
+                }
+            });
+
+    // The application's <meta-data> bundle, loaded on first use. Every WebView constructor
+    // reads it, so it has a lock of its own rather than mLock, which is held for the whole of
+    // startup; once loaded it is read without locking.
+    private final Object mApplicationMetaDataLock = new Object();
+    private volatile Bundle mApplicationMetaData;
+
+    // Set once prewarm() has scheduled startup. Guarded by mLock.
+    private boolean mPrewarmScheduled;
+
     public WebViewChromiumFactoryProvider() {
         ThreadUtils.setWillOverrideUiThread();
+        // Getting the SharedPreferences starts loading them on a background thread; do that
+        // first so the load overlaps with loading the libraries. Reads block until it is done,
+        // so they happen in checkVersion(), off this thread.
+        mWebViewPrefs = ActivityThread.currentApplication().getSharedPreferences(
+                CHROMIUM_PREFS_NAME, Context.MODE_PRIVATE);
+
+        // In async mode the libraries are loaded by the background task below, and joined
+        // through mInitLibraryTask by everything that needs them.
+        if (!isAsyncLibraryLoadEnabled()) {
+            runAndJoin(mLoadLibrariesTask);
+        }
+
+        // Get the parts of startup that don't need the UI thread out of the way while the app
+        // is still busy with other things. This includes checkVersion(), after which it is safe
+        // to use the WebView data directory.
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(mInitResourcesTask);
+
+        if (getApplicationMetaData().getBoolean(METADATA_PREWARM)) {
+            prewarm();
+        }
+        if (Log.isLoggable(STATS_TAG, Log.DEBUG)) {
+            logStatsWhenUiHidden();
+        }
+    }
+
+    private void logStatsWhenUiHidden() {
+        ActivityThread.currentApplication().registerComponentCallbacks(
+                new ComponentCallbacks2() {
+                    @Override
+                    public void onTrimMemory(int level) {
+                        if (level != TRIM_MEMORY_UI_HIDDEN) return;
+                        PrintWriter pw = new PrintWriter(new LogWriter(Log.DEBUG, STATS_TAG));
+                        mStartupTimings.dump(pw);
+                        RunQueueStats.dump(pw);
+                        BlockingCallStats.dump(pw);
+                    }
+
+                    @Override
+                    public void onLowMemory() {
+                    }
+
+                    @Override
+                    public void onConfigurationChanged(Configuration newConfig) {
+                    }
+                });
+    }
+
+    private void loadLibraries() {
         // Load chromium library.
-        Trace.traceBegin(Trace.TRACE_TAG_WEBVIEW, "AwBrowserProcess.loadLibrary()");
-        AwBrowserProcess.loadLibrary();
-        Trace.traceEnd(Trace.TRACE_TAG_WEBVIEW);
+        long start = mStartupTimings.beginPhase("loadLibrary");
+        try {
+            AwBrowserProcess.loadLibrary();
+        } finally {
+            mStartupTimings.endPhase("loadLibrary", start);
+        }
         // Load glue-layer support library.
-        System.loadLibrary("webviewchromium_plat_support");
+        start = mStartupTimings.beginPhase("loadPlatSupportLibrary");
+        try {
+            System.loadLibrary("webviewchromium_plat_support");
+        } finally {
+            mStartupTimings.endPhase("loadPlatSupportLibrary", start);
+        }
+    }
 
+    // Checks for a package downgrade, which needs the WebView data directory wiped before
+    // anything uses it. Joined through mCheckVersionTask by everything that touches the data
+    // directory, mWebViewPrefs or mUserAgentCacheKey.
+    private void checkVersion() {
         // TODO: temporary try/catch while framework builds catch up with WebView builds.
         // Remove this.
         try {
             // Use shared preference to check for package downgrade.
-            mWebViewPrefs = ActivityThread.currentApplication().getSharedPreferences(
-                                CHROMIUM_PREFS_NAME, Context.MODE_PRIVATE);
-            int lastVersion = mWebViewPrefs.getInt(VERSION_CODE_PREF, 0);
+            long start = mStartupTimings.beginPhase("readPreferences");
+            int lastVersion;
+            try {
+                lastVersion = mWebViewPrefs.getInt(VERSION_CODE_PREF, 0);
+            } finally {
+                mStartupTimings.endPhase("readPreferences", start);
+            }
             int currentVersion = WebViewFactory.getLoadedPackageInfo().versionCode;
+            if (!Build.IS_DEBUGGABLE || !new File(COMMAND_LINE_FILE).exists()) {
+                mUserAgentCacheKey = currentVersion + "/" + Build.FINGERPRINT;
+            }
+            File dataDir = new File(
+                    PathUtils.getDataDirectory(ActivityThread.currentApplication()));
             if (lastVersion > currentVersion) {
                 // The WebView package has been downgraded since we last ran in this application.
-                // Delete the WebView data directory's contents.
-                String dataDir = PathUtils.getDataDirectory(ActivityThread.currentApplication());
-                Log.i(TAG, "WebView package downgraded from " + lastVersion + " to " + currentVersion +
-                           "; deleting contents of " + dataDir);
-                FileUtils.deleteContents(new File(dataDir));
+                // Delete the WebView data directory's contents. Only the rename happens here;
+                // the contents are deleted in the background.
+                start = mStartupTimings.beginPhase("deleteDataDirectory");
+                try {
+                    Log.i(TAG, "WebView package downgraded from " + lastVersion + " to " +
+                            currentVersion + "; deleting contents of " + dataDir);
+                    DataDirectoryCleaner.wipe(dataDir);
+                } finally {
+                    mStartupTimings.endPhase("deleteDataDirectory", start);
+                }
+            } else {
+                // Finish off any earlier wipe that was interrupted.
+                DataDirectoryCleaner.sweepTombstones(dataDir);
             }
             if (lastVersion != currentVersion) {
                 mWebViewPrefs.edit().putInt(VERSION_CODE_PREF, currentVersion).apply();
@@ -130,8 +309,6 @@ public class WebViewChromiumFactoryProvider implements WebViewFactoryProvider {
         } catch (NoSuchMethodError e) {
             Log.w(TAG, "Not doing version downgrade check as framework is too old.");
         }
-
-        // Now safe to use WebView data directory.
     }
 
     private void initPlatSupportLibrary() {
@@ -169,9 +346,11 @@ public class WebViewChromiumFactoryProvider implements WebViewFactoryProvider {
         ThreadUtils.setUiThread(looper);
 
         if (ThreadUtils.runningOnUiThread()) {
+            mStartupTimings.recordTrigger(true, false);
             startChromiumLocked();
             return;
         }
+        mStartupTimings.recordTrigger(false, true);
 
         // We must post to the UI thread to cover the case that the user has invoked Chromium
         // startup by using the (thread-safe) CookieManager rather than creating a WebView.
@@ -183,13 +362,18 @@ public class WebViewChromiumFactoryProvider implements WebViewFactoryProvider {
                 }
             }
         });
-        while (!mStarted) {
-            try {
-                // Important: wait() releases |mLock| the UI thread can take it :-)
-                mLock.wait();
-            } catch (InterruptedException e) {
-                // Keep trying... eventually the UI thread will process the task we sent it.
+        long start = mStartupTimings.beginPhase("waitForUiThread");
+        try {
+            while (!mStarted) {
+                try {
+                    // Important: wait() releases |mLock| the UI thread can take it :-)
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    // Keep trying... eventually the UI thread will process the task we sent it.
+                }
             }
+        } finally {
+            mStartupTimings.endPhase("waitForUiThread", start);
         }
     }
 
@@ -204,72 +388,282 @@ public class WebViewChromiumFactoryProvider implements WebViewFactoryProvider {
             return;
         }
 
-        if (Build.IS_DEBUGGABLE) {
-            // Suppress the StrictMode violation as this codepath is only hit on debugglable builds.
-            StrictMode.ThreadPolicy oldPolicy = StrictMode.allowThreadDiskReads();
-            CommandLine.initFromFile(COMMAND_LINE_FILE);
-            StrictMode.setThreadPolicy(oldPolicy);
-        } else {
-            CommandLine.init(null);
+        long startChromium = mStartupTimings.beginPhase("startChromium");
+        try {
+            // Usually already done in the background by now; otherwise do it here.
+            long start = mStartupTimings.beginPhase("waitForPrepared");
+            try {
+                runAndJoin(mInitResourcesTask);
+            } finally {
+                mStartupTimings.endPhase("waitForPrepared", start);
+            }
+
+            start = mStartupTimings.beginPhase("startBrowserProcess");
+            try {
+                AwBrowserProcess.start(ActivityThread.currentApplication());
+            } finally {
+                mStartupTimings.endPhase("startBrowserProcess", start);
+            }
+
+            if (Build.IS_DEBUGGABLE) {
+                setWebContentsDebuggingEnabled(true);
+            }
+
+            initTraceEvent();
+            mStarted = true;
+
+            start = mStartupTimings.beginPhase("startWebViews");
+            try {
+                startWebViewsIncrementally(mWebViewsToStart);
+                mWebViewsToStart = null;
+            } finally {
+                mStartupTimings.endPhase("startWebViews", start);
+            }
+        } finally {
+            mStartupTimings.endPhase("startChromium", startChromium);
         }
 
-        CommandLine cl = CommandLine.getInstance();
-        // TODO: currently in a relase build the DCHECKs only log. We either need to insall
-        // a report handler with SetLogReportHandler to make them assert, or else compile
-        // them out of the build altogether (b/8284203). Either way, so long they're
-        // compiled in, we may as unconditionally enable them here.
-        cl.appendSwitch("enable-dcheck");
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                refreshDefaultUserAgent();
+            }
+        });
+    }
+
+    // Initializes the WebViews created before Chromium started, one per frame rather than all
+    // in one long UI thread task, picking attached and visible ones first. A WebView that is
+    // used before its turn initializes itself then (see WebViewChromium.checkNeedsPost()).
+    private void startWebViewsIncrementally(
+            final ArrayList<WeakReference<WebViewChromium>> webViews) {
+        if (!startNextWebView(webViews)) return;
+        Choreographer.getInstance().postFrameCallback(new Choreographer.FrameCallback() {
+            @Override
+            public void doFrame(long frameTimeNanos) {
+                if (startNextWebView(webViews)) {
+                    Choreographer.getInstance().postFrameCallback(this);
+                }
+            }
+        });
+    }
 
-        // TODO: Remove when GL is supported by default in the upstream code.
-        if (!cl.hasSwitch("disable-webview-gl-mode")) {
-            cl.appendSwitch("testing-webview-gl-mode");
+    // Starts the highest priority WebView left in |webViews|, removing it and any that have
+    // been collected. Returns whether any remain.
+    private static boolean startNextWebView(ArrayList<WeakReference<WebViewChromium>> webViews) {
+        int next = -1;
+        boolean nextShown = false;
+        for (int i = webViews.size() - 1; i >= 0; i--) {
+            WebViewChromium w = webViews.get(i).get();
+            if (w == null) {
+                webViews.remove(i);
+                if (next > i) next--;
+                continue;
+            }
+            // Iterating backwards, so ties go to the WebView created first.
+            boolean shown = w.isAttachedAndShown();
+            if (next == -1 || shown || !nextShown) {
+                next = i;
+                nextShown = shown;
+            }
         }
+        if (next == -1) return false;
+        WebViewChromium w = webViews.remove(next).get();
+        if (w != null) w.startYourEngine();
+        return !webViews.isEmpty();
+    }
+
+    // Startup is split into tiers. The first two, this and initResources(), only initialize the
+    // native library and process-wide state, none of which cares which thread it runs on, so
+    // they are kicked off on a background thread as soon as the provider is constructed.
+    // startChromiumLocked() does the rest, which needs to run on the UI thread.
+    private void initLibrary() {
+        long start = mStartupTimings.beginPhase("initCommandLine");
+        try {
+            if (Build.IS_DEBUGGABLE) {
+                // Suppress the StrictMode violation as this codepath is only hit on debugglable
+                // builds.
+                StrictMode.ThreadPolicy oldPolicy = StrictMode.allowThreadDiskReads();
+                CommandLine.initFromFile(COMMAND_LINE_FILE);
+                StrictMode.setThreadPolicy(oldPolicy);
+            } else {
+                CommandLine.init(null);
+            }
 
-        // We don't need to extract any paks because for WebView, they are
-        // in the system image.
-        ResourceExtractor.setMandatoryPaksToExtract("");
+            CommandLine cl = CommandLine.getInstance();
+            // TODO: currently in a relase build the DCHECKs only log. We either need to insall
+            // a report handler with SetLogReportHandler to make them assert, or else compile
+            // them out of the build altogether (b/8284203). Either way, so long they're
+            // compiled in, we may as unconditionally enable them here.
+            cl.appendSwitch("enable-dcheck");
 
+            // TODO: Remove when GL is supported by default in the upstream code.
+            if (!cl.hasSwitch("disable-webview-gl-mode")) {
+                cl.appendSwitch("testing-webview-gl-mode");
+            }
+
+            // We don't need to extract any paks because for WebView, they are
+            // in the system image.
+            ResourceExtractor.setMandatoryPaksToExtract("");
+        } finally {
+            mStartupTimings.endPhase("initCommandLine", start);
+        }
+
+        start = mStartupTimings.beginPhase("initLibrary");
         try {
             LibraryLoader.ensureInitialized();
         } catch(ProcessInitException e) {
             throw new RuntimeException("Error initializing WebView library", e);
+        } finally {
+            mStartupTimings.endPhase("initLibrary", start);
         }
+    }
 
-        PathService.override(PathService.DIR_MODULE, "/system/lib/");
-        // TODO: DIR_RESOURCE_PAKS_ANDROID needs to live somewhere sensible,
-        // inlined here for simplicity setting up the HTMLViewer demo. Unfortunately
-        // it can't go into base.PathService, as the native constant it refers to
-        // lives in the ui/ layer. See ui/base/ui_base_paths.h
-        final int DIR_RESOURCE_PAKS_ANDROID = 3003;
-        PathService.override(DIR_RESOURCE_PAKS_ANDROID,
-                "/system/framework/webview/paks");
+    private void initResources() {
+        long start = mStartupTimings.beginPhase("setUpResources");
+        try {
+            PathService.override(PathService.DIR_MODULE, "/system/lib/");
+            // TODO: DIR_RESOURCE_PAKS_ANDROID needs to live somewhere sensible,
+            // inlined here for simplicity setting up the HTMLViewer demo. Unfortunately
+            // it can't go into base.PathService, as the native constant it refers to
+            // lives in the ui/ layer. See ui/base/ui_base_paths.h
+            final int DIR_RESOURCE_PAKS_ANDROID = 3003;
+            PathService.override(DIR_RESOURCE_PAKS_ANDROID,
+                    "/system/framework/webview/paks");
+
+            // Make sure that ResourceProvider is initialized before starting the browser
+            // process.
+            setUpResources(ActivityThread.currentApplication());
+        } finally {
+            mStartupTimings.endPhase("setUpResources", start);
+        }
 
-        // Make sure that ResourceProvider is initialized before starting the browser process.
-        setUpResources(ActivityThread.currentApplication());
-        initPlatSupportLibrary();
-        AwBrowserProcess.start(ActivityThread.currentApplication());
+        start = mStartupTimings.beginPhase("initPlatSupportLibrary");
+        try {
+            initPlatSupportLibrary();
+        } finally {
+            mStartupTimings.endPhase("initPlatSupportLibrary", start);
+        }
+    }
 
-        if (Build.IS_DEBUGGABLE) {
-            setWebContentsDebuggingEnabled(true);
+    // Runs |task| on this thread if the background thread has not got to it yet, and waits for
+    // it to finish otherwise.
+    private static void runAndJoin(FutureTask<Void> task) {
+        task.run();
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    task.get();
+                    return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new RuntimeException(cause);
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
         }
+    }
 
-        initTraceEvent();
-        mStarted = true;
+    private String getDefaultUserAgent() {
+        String userAgent = mDefaultUserAgent;
+        if (userAgent != null) return userAgent;
+        runAndJoin(mCheckVersionTask);
+        if (mUserAgentCacheKey != null &&
+                mUserAgentCacheKey.equals(mWebViewPrefs.getString(DEFAULT_USER_AGENT_KEY_PREF,
+                        null))) {
+            userAgent = mWebViewPrefs.getString(DEFAULT_USER_AGENT_PREF, null);
+        }
+        if (userAgent == null) userAgent = refreshDefaultUserAgent();
+        mDefaultUserAgent = userAgent;
+        return userAgent;
+    }
 
-        for (WeakReference<WebViewChromium> wvc : mWebViewsToStart) {
-            WebViewChromium w = wvc.get();
-            if (w != null) {
-                w.startYourEngine();
-            }
+    // Computes the default user agent, which needs the native library, and updates the cached
+    // copy if it changed.
+    private String refreshDefaultUserAgent() {
+        ensureInitialized(INIT_TIER_LIBRARY);
+        String userAgent = AwSettings.getDefaultUserAgent();
+        mDefaultUserAgent = userAgent;
+        if (mUserAgentCacheKey != null && (!userAgent.equals(
+                mWebViewPrefs.getString(DEFAULT_USER_AGENT_PREF, null)) ||
+                !mUserAgentCacheKey.equals(
+                        mWebViewPrefs.getString(DEFAULT_USER_AGENT_KEY_PREF, null)))) {
+            mWebViewPrefs.edit()
+                    .putString(DEFAULT_USER_AGENT_PREF, userAgent)
+                    .putString(DEFAULT_USER_AGENT_KEY_PREF, mUserAgentCacheKey)
+                    .apply();
+        }
+        return userAgent;
+    }
+
+    // Brings Chromium up to at least |tier|, one of the INIT_TIER_* constants, so that callers
+    // only pay for what they use.
+    void ensureInitialized(int tier) {
+        switch (tier) {
+            case INIT_TIER_LIBRARY:
+                runAndJoin(mInitLibraryTask);
+                break;
+            case INIT_TIER_BROWSER:
+                startYourEngines(true);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown initialization tier " + tier);
         }
-        mWebViewsToStart.clear();
-        mWebViewsToStart = null;
     }
 
     boolean hasStarted() {
         return mStarted;
     }
 
+    private Bundle getApplicationMetaData() {
+        Bundle metaData = mApplicationMetaData;
+        if (metaData != null) return metaData;
+        synchronized (mApplicationMetaDataLock) {
+            if (mApplicationMetaData == null) {
+                Context ctx = ActivityThread.currentApplication();
+                try {
+                    metaData = ctx.getPackageManager().getApplicationInfo(
+                            ctx.getPackageName(), PackageManager.GET_META_DATA).metaData;
+                } catch (PackageManager.NameNotFoundException e) {
+                    Log.w(TAG, "Unable to read application meta-data", e);
+                }
+                mApplicationMetaData = metaData != null ? metaData : Bundle.EMPTY;
+            }
+            return mApplicationMetaData;
+        }
+    }
+
+    // Whether input events received off the UI thread are forwarded to it asynchronously
+    // rather than blocking the caller. Only matters to apps that bind Chromium to a background
+    // looper.
+    boolean isAsyncInputForwardingEnabled() {
+        return getApplicationMetaData().getBoolean(METADATA_ASYNC_INPUT_FORWARDING);
+    }
+
+    // Whether WebViews defer creating their AwContents until they are first attached, shown,
+    // navigated or asked for a result, buffering other calls until then.
+    boolean isLazyAwContentsEnabled() {
+        return getApplicationMetaData().getBoolean(METADATA_LAZY_AW_CONTENTS);
+    }
+
+    // Whether the native libraries are loaded on a background thread rather than the one that
+    // first uses WebView. Everything that reaches native code must then join the library tier
+    // first; see ensureInitialized().
+    boolean isAsyncLibraryLoadEnabled() {
+        return getApplicationMetaData().getBoolean(METADATA_ASYNC_LIBRARY_LOAD);
+    }
+
+    int getRunQueueCapacity() {
+        int capacity = getApplicationMetaData().getInt(
+                METADATA_RUN_QUEUE_CAPACITY, DEFAULT_RUN_QUEUE_CAPACITY);
+        return capacity > 0 ? capacity : DEFAULT_RUN_QUEUE_CAPACITY;
+    }
+
     void startYourEngines(boolean onMainThread) {
         synchronized (mLock) {
             ensureChromiumStartedLocked(onMainThread);
@@ -277,6 +671,34 @@ public class WebViewChromiumFactoryProvider implements WebViewFactoryProvider {
         }
     }
 
+    // Starts Chromium and creates the browser context the next time the main looper is idle, so
+    // that the first WebView doesn't pay for it while the user is waiting. Apps opt in with
+    // the Prewarm meta-data.
+    private void prewarm() {
+        synchronized (mLock) {
+            if (mStarted || mPrewarmScheduled) return;
+            mPrewarmScheduled = true;
+        }
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+                    @Override
+                    public boolean queueIdle() {
+                        long start = mStartupTimings.beginPhase("prewarm");
+                        try {
+                            ensureInitialized(INIT_TIER_BROWSER);
+                            getBrowserContext();
+                        } finally {
+                            mStartupTimings.endPhase("prewarm", start);
+                        }
+                        return false;
+                    }
+                });
+            }
+        });
+    }
+
     AwBrowserContext getBrowserContext() {
         synchronized (mLock) {
             return getBrowserContextLocked();
@@ -316,25 +738,27 @@ public class WebViewChromiumFactoryProvider implements WebViewFactoryProvider {
 
     @Override
     public Statics getStatics() {
+        Statics staticMethods = mStaticMethods;
+        if (staticMethods != null) return staticMethods;
         synchronized (mLock) {
             if (mStaticMethods == null) {
-                // TODO: Optimization potential: most these methods only need the native library
-                // loaded and initialized, not the entire browser process started.
-                // See also http://b/7009882
-                ensureChromiumStartedLocked(true);
+                // Each method initializes only the tier it needs rather than starting the
+                // browser process up front. See also http://b/7009882
                 mStaticMethods = new WebViewFactoryProvider.Statics() {
                     @Override
                     public String findAddress(String addr) {
+                        ensureInitialized(INIT_TIER_LIBRARY);
                         return ContentViewStatics.findAddress(addr);
                     }
 
                     @Override
                     public String getDefaultUserAgent(Context context) {
-                        return AwSettings.getDefaultUserAgent();
+                        return WebViewChromiumFactoryProvider.this.getDefaultUserAgent();
                     }
 
                     @Override
                     public void setWebContentsDebuggingEnabled(boolean enable) {
+                        ensureInitialized(INIT_TIER_BROWSER);
                         // Web Contents debugging is always enabled on debug builds.
                         if (!Build.IS_DEBUGGABLE) {
                             WebViewChromiumFactoryProvider.this.
@@ -345,12 +769,14 @@ public class WebViewChromiumFactoryProvider implements WebViewFactoryProvider {
                     // TODO enable after L release to AOSP
                     //@Override
                     public void clearClientCertPreferences(Runnable onCleared) {
+                        ensureInitialized(INIT_TIER_BROWSER);
                         AwContentsStatics.clearClientCertPreferences(onCleared);
                     }
 
                     @Override
                     public void freeMemoryForTests() {
                         if (ActivityManager.isRunningInTestHarness()) {
+                            ensureInitialized(INIT_TIER_BROWSER);
                             MemoryPressureListener.maybeNotifyMemoryPresure(
                                     ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
                         }
@@ -373,6 +799,12 @@ public class WebViewChromiumFactoryProvider implements WebViewFactoryProvider {
 
     @Override
     public WebViewProvider createWebView(WebView webView, WebView.PrivateAccess privateAccess) {
+        // WebViewChromium.init() reaches native code, e.g. for the default user agent, whether
+        // or not it starts Chromium. The constructor already loaded the library unless that
+        // was left to the background.
+        if (isAsyncLibraryLoadEnabled()) {
+            ensureInitialized(INIT_TIER_LIBRARY);
+        }
         WebViewChromium wvc = new WebViewChromium(this, webView, privateAccess);
 
         synchronized (mLock) {
@@ -386,6 +818,8 @@ public class WebViewChromiumFactoryProvider implements WebViewFactoryProvider {
 
     @Override
     public GeolocationPermissions getGeolocationPermissions() {
+        GeolocationPermissions geolocationPermissions = mGeolocationPermissions;
+        if (geolocationPermissions != null) return geolocationPermissions;
         synchronized (mLock) {
             if (mGeolocationPermissions == null) {
                 ensureChromiumStartedLocked(true);
@@ -398,6 +832,8 @@ public class WebViewChromiumFactoryProvider implements WebViewFactoryProvider {
 
     @Override
     public CookieManager getCookieManager() {
+        CookieManager cookieManager = mCookieManager;
+        if (cookieManager != null) return cookieManager;
         synchronized (mLock) {
             if (mCookieManager == null) {
                 if (!mStarted) {
@@ -405,6 +841,9 @@ public class WebViewChromiumFactoryProvider implements WebViewFactoryProvider {
                     // will bring up just the parts it needs to make this work on a temporary
                     // basis until Chromium is started for real. The temporary cookie manager
                     // needs the application context to have been set.
+                    // The native library must have been loaded (and we mustn't race its
+                    // initialization in initLibrary()) first.
+                    runAndJoin(mInitLibraryTask);
                     ContentMain.initApplicationContext(ActivityThread.currentApplication());
                 }
                 mCookieManager = new CookieManagerAdapter(new AwCookieManager());
@@ -415,6 +854,8 @@ public class WebViewChromiumFactoryProvider implements WebViewFactoryProvider {
 
     @Override
     public WebIconDatabase getWebIconDatabase() {
+        WebIconDatabase webIconDatabase = mWebIconDatabase;
+        if (webIconDatabase != null) return webIconDatabase;
         synchronized (mLock) {
             if (mWebIconDatabase == null) {
                 ensureChromiumStartedLocked(true);
@@ -426,6 +867,8 @@ public class WebViewChromiumFactoryProvider implements WebViewFactoryProvider {
 
     @Override
     public WebStorage getWebStorage() {
+        WebStorage webStorage = mWebStorage;
+        if (webStorage != null) return webStorage;
         synchronized (mLock) {
             if (mWebStorage == null) {
                 ensureChromiumStartedLocked(true);
@@ -437,6 +880,8 @@ public class WebViewChromiumFactoryProvider implements WebViewFactoryProvider {
 
     @Override
     public WebViewDatabase getWebViewDatabase(Context context) {
+        WebViewDatabase webViewDatabase = mWebViewDatabase;
+        if (webViewDatabase != null) return webViewDatabase;
         synchronized (mLock) {
             if (mWebViewDatabase == null) {
                 ensureChromiumStartedLocked(true);
@@ -52,6 +52,7 @@ import android.webkit.WebResourceRequest;
 import android.webkit.WebView;
 import android.webkit.WebViewClient;
 
+import org.chromium.android_webview.AwContents;
 import org.chromium.android_webview.AwContentsClient;
 import org.chromium.android_webview.AwContentsClientBridge;
 import org.chromium.android_webview.AwHttpAuthHandler;
@@ -111,6 +112,12 @@ public class WebViewContentsClientAdapter extends AwContentsClient {
 
     private Handler mUiThreadHandler;
 
+    // The AwContents this adapter is the client of; null until it has been created.
+    private AwContents mAwContents;
+    // Latest navigation state of mAwContents. Written on the UI thread only, read from any
+    // thread.
+    private volatile NavigationState mNavigationState;
+
     private static final int NEW_WEBVIEW_CREATED = 100;
 
     private WeakHashMap<AwPermissionRequest, WeakReference<PermissionRequestAdapter>>
@@ -229,6 +236,27 @@ public class WebViewContentsClientAdapter extends AwContentsClient {
         mPictureListener = listener;
     }
 
+    void setAwContents(AwContents awContents) {
+        mAwContents = awContents;
+        updateNavigationState();
+    }
+
+    /**
+     * Returns the most recently published navigation state, or null if AwContents has not
+     * been created yet. Can be called on any thread.
+     */
+    NavigationState getNavigationState() {
+        return mNavigationState;
+    }
+
+    /**
+     * Re-captures the navigation state from AwContents. Must be called on the UI thread.
+     */
+    void updateNavigationState() {
+        if (mAwContents == null) return;
+        mNavigationState = new NavigationState(mAwContents);
+    }
+
     //--------------------------------------------------------------------------------------------
     //                        Adapter for all the methods.
     //--------------------------------------------------------------------------------------------
@@ -252,6 +280,7 @@ public class WebViewContentsClientAdapter extends AwContentsClient {
     @Override
     public void doUpdateVisitedHistory(String url, boolean isReload) {
         TraceEvent.begin();
+        updateNavigationState();
         if (TRACE) Log.d(TAG, "doUpdateVisitedHistory=" + url + " reload=" + isReload);
         mWebViewClient.doUpdateVisitedHistory(mWebView, url, isReload);
         TraceEvent.end();
@@ -467,6 +496,10 @@ public class WebViewContentsClientAdapter extends AwContentsClient {
     @Override
     public void onReceivedIcon(Bitmap bitmap) {
         TraceEvent.begin();
+        if (mAwContents != null) {
+            // AwContents may only record the new icon after notifying us, so take it from here.
+            mNavigationState = new NavigationState(mAwContents).withFavicon(bitmap);
+        }
         if (mWebChromeClient != null) {
             if (TRACE) Log.d(TAG, "onReceivedIcon");
             mWebChromeClient.onReceivedIcon(mWebView, bitmap);
@@ -480,6 +513,7 @@ public class WebViewContentsClientAdapter extends AwContentsClient {
     @Override
     public void onPageStarted(String url) {
         TraceEvent.begin();
+        updateNavigationState();
         if (TRACE) Log.d(TAG, "onPageStarted=" + url);
         mWebViewClient.onPageStarted(mWebView, url, mWebView.getFavicon());
         TraceEvent.end();
@@ -491,6 +525,7 @@ public class WebViewContentsClientAdapter extends AwContentsClient {
     @Override
     public void onPageFinished(String url) {
         TraceEvent.begin();
+        updateNavigationState();
         if (TRACE) Log.d(TAG, "onPageFinished=" + url);
         mWebViewClient.onPageFinished(mWebView, url);
         TraceEvent.end();
@@ -545,6 +580,7 @@ public class WebViewContentsClientAdapter extends AwContentsClient {
     @Override
     public void onReceivedTitle(String title) {
         TraceEvent.begin();
+        updateNavigationState();
         if (mWebChromeClient != null) {
             if (TRACE) Log.d(TAG, "onReceivedTitle");
             mWebChromeClient.onReceivedTitle(mWebView, title);
@@ -19,14 +19,18 @@
 #define LOG_TAG "webviewchromiumloader"
 
 #include <dlfcn.h>
+#include <elf.h>
 #include <errno.h>
 #include <fcntl.h>
+#include <link.h>
+#include <pthread.h>
 #include <stdio.h>
 #include <stdlib.h>
 #include <string.h>
 #include <unistd.h>
 #include <sys/mman.h>
 #include <sys/stat.h>
+#include <sys/system_properties.h>
 #include <sys/types.h>
 
 #include <jni.h>
@@ -35,12 +39,67 @@
 
 #define NELEM(x) ((int) (sizeof(x) / sizeof((x)[0])))
 
+#ifndef NT_GNU_BUILD_ID
+#define NT_GNU_BUILD_ID 3
+#endif
+
 namespace android {
 namespace {
 
 void* gReservedAddress = NULL;
 size_t gReservedSize = 0;
 
+// How many libraries this process has loaded with and without RELRO sharing,
+// logged with each load so that a device that stopped sharing shows up in
+// release build logs.
+int gRelroHits = 0;
+int gRelroMisses = 0;
+
+// Maximum number of libraries that can share RELRO through the *RelroFiles
+// entry points.
+const int kMaxLibraries = 8;
+
+// Every RELRO file is accompanied by a header file, at the same path plus
+// kHeaderSuffix, that records what the RELRO file was created for. It is
+// checked before the RELRO file is used, since using a RELRO file that doesn't
+// match the library or the address it is loaded at silently shares nothing.
+const char kHeaderSuffix[] = ".hdr";
+const uint32_t kRelroHeaderMagic = 0x4f524c52;  // "RLRO"
+const uint32_t kRelroHeaderVersion = 2;
+const size_t kMaxBuildIdSize = 32;
+
+struct RelroHeader {
+  uint32_t magic;
+  uint32_t version;
+  // The library the RELRO file was created from.
+  uint8_t build_id[kMaxBuildIdSize];
+  uint32_t build_id_size;
+  uint64_t lib_size;
+  // Where it was loaded.
+  uint64_t load_address;
+  uint64_t load_size;
+  // The RELRO file itself. Its contents aren't checksummed: that would mean
+  // reading the whole file on every load, and a file written for the right
+  // library and address is only wrong if the disk corrupted it.
+  uint64_t relro_size;
+};
+
+// A library can come with a list of the file ranges its startup touches,
+// recorded from a startup trace by tools/generate_hot_page_list.py, at the
+// library's path plus kHotPagesSuffix. After the library is loaded, those
+// ranges are read ahead on a background thread, turning many small page faults
+// into a few large sequential reads. Setting kPrefetchProperty to 0 or false
+// turns this off.
+const char kHotPagesSuffix[] = ".hotpages";
+const char kPrefetchProperty[] = "webview.prefetch_hot_pages";
+
+struct LibraryInfo {
+  size_t load_size;
+  uint64_t file_size;
+  uint8_t build_id[kMaxBuildIdSize];
+  uint32_t build_id_size;
+};
+
 jboolean DoReserveAddressSpace(jlong size) {
   size_t vsize = static_cast<size_t>(size);
 
@@ -57,7 +116,276 @@ jboolean DoReserveAddressSpace(jlong size) {
   return JNI_TRUE;
 }
 
-jboolean DoCreateRelroFile(const char* lib, const char* relro) {
+// Reads the GNU build-id note, if any, from the PT_NOTE segment |phdr|.
+void ReadBuildId(int fd, const ElfW(Phdr)& phdr, LibraryInfo* info) {
+  uint8_t notes[4096];
+  size_t size = phdr.p_filesz < sizeof(notes) ? phdr.p_filesz : sizeof(notes);
+  if (TEMP_FAILURE_RETRY(pread(fd, notes, size, phdr.p_offset)) !=
+      static_cast<ssize_t>(size)) {
+    return;
+  }
+  size_t offset = 0;
+  while (offset + sizeof(ElfW(Nhdr)) <= size) {
+    ElfW(Nhdr) nhdr;
+    memcpy(&nhdr, notes + offset, sizeof(nhdr));
+    size_t name_offset = offset + sizeof(nhdr);
+    size_t desc_offset = name_offset + ((nhdr.n_namesz + 3) & ~3);
+    size_t next_offset = desc_offset + ((nhdr.n_descsz + 3) & ~3);
+    if (next_offset > size) return;
+    if (nhdr.n_type == NT_GNU_BUILD_ID && nhdr.n_namesz == 4 &&
+        memcmp(notes + name_offset, "GNU", 4) == 0) {
+      info->build_id_size = nhdr.n_descsz < kMaxBuildIdSize
+                                ? nhdr.n_descsz
+                                : kMaxBuildIdSize;
+      memcpy(info->build_id, notes + desc_offset, info->build_id_size);
+      return;
+    }
+    offset = next_offset;
+  }
+}
+
+// Reads what we need to know about |lib| from its ELF headers: how much
+// address space it needs when loaded (the page-aligned span of its PT_LOAD
+// segments), and what identifies the build.
+bool GetLibraryInfo(const char* lib, LibraryInfo* info) {
+  memset(info, 0, sizeof(*info));
+  int fd = TEMP_FAILURE_RETRY(open(lib, O_RDONLY | O_CLOEXEC));
+  if (fd == -1) {
+    ALOGE("Failed to open library %s: %s", lib, strerror(errno));
+    return false;
+  }
+  bool ok = false;
+  struct stat st;
+  ElfW(Ehdr) ehdr;
+  if (fstat(fd, &st) != 0 ||
+      TEMP_FAILURE_RETRY(pread(fd, &ehdr, sizeof(ehdr), 0)) !=
+          static_cast<ssize_t>(sizeof(ehdr)) ||
+      memcmp(ehdr.e_ident, ELFMAG, SELFMAG) != 0 ||
+      ehdr.e_phentsize != sizeof(ElfW(Phdr)) ||
+      ehdr.e_phnum == 0) {
+    ALOGE("Library %s is not a valid ELF file for this ABI", lib);
+  } else {
+    info->file_size = st.st_size;
+    size_t phdrs_size = ehdr.e_phnum * sizeof(ElfW(Phdr));
+    ElfW(Phdr)* phdrs = static_cast<ElfW(Phdr)*>(malloc(phdrs_size));
+    if (phdrs != NULL &&
+        TEMP_FAILURE_RETRY(pread(fd, phdrs, phdrs_size, ehdr.e_phoff)) ==
+            static_cast<ssize_t>(phdrs_size)) {
+      ElfW(Addr) min_vaddr = ~static_cast<ElfW(Addr)>(0);
+      ElfW(Addr) max_vaddr = 0;
+      for (int i = 0; i < ehdr.e_phnum; ++i) {
+        if (phdrs[i].p_type == PT_NOTE && info->build_id_size == 0) {
+          ReadBuildId(fd, phdrs[i], info);
+        }
+        if (phdrs[i].p_type != PT_LOAD) continue;
+        if (phdrs[i].p_vaddr < min_vaddr) min_vaddr = phdrs[i].p_vaddr;
+        if (phdrs[i].p_vaddr + phdrs[i].p_memsz > max_vaddr) {
+          max_vaddr = phdrs[i].p_vaddr + phdrs[i].p_memsz;
+        }
+      }
+      if (max_vaddr > min_vaddr) {
+        ElfW(Addr) page_mask = ~static_cast<ElfW(Addr)>(getpagesize() - 1);
+        min_vaddr &= page_mask;
+        max_vaddr = (max_vaddr + ~page_mask) & page_mask;
+        info->load_size = max_vaddr - min_vaddr;
+        ok = true;
+      } else {
+        ALOGE("Library %s has no loadable segments", lib);
+      }
+    } else {
+      ALOGE("Failed to read program headers of %s", lib);
+    }
+    free(phdrs);
+  }
+  close(fd);
+  return ok;
+}
+
+// Fills in the header describing a RELRO file open as |relro_fd|, created for
+// |lib| loaded at |reserved_addr|.
+bool MakeRelroHeader(const char* lib, int relro_fd, void* reserved_addr,
+                     size_t reserved_size, RelroHeader* header) {
+  memset(header, 0, sizeof(*header));
+  LibraryInfo info;
+  struct stat st;
+  if (!GetLibraryInfo(lib, &info) || fstat(relro_fd, &st) != 0) {
+    return false;
+  }
+  header->relro_size = st.st_size;
+  header->magic = kRelroHeaderMagic;
+  header->version = kRelroHeaderVersion;
+  memcpy(header->build_id, info.build_id, sizeof(header->build_id));
+  header->build_id_size = info.build_id_size;
+  header->lib_size = info.file_size;
+  header->load_address = reinterpret_cast<uintptr_t>(reserved_addr);
+  header->load_size = reserved_size;
+  return true;
+}
+
+bool WriteRelroHeader(const char* relro, const RelroHeader& header) {
+  static const char tmpsuffix[] = ".XXXXXX";
+  char path[strlen(relro) + sizeof(kHeaderSuffix)];
+  strlcpy(path, relro, sizeof(path));
+  strlcat(path, kHeaderSuffix, sizeof(path));
+  char path_tmp[sizeof(path) + sizeof(tmpsuffix)];
+  strlcpy(path_tmp, path, sizeof(path_tmp));
+  strlcat(path_tmp, tmpsuffix, sizeof(path_tmp));
+  int fd = TEMP_FAILURE_RETRY(mkstemp(path_tmp));
+  if (fd == -1) {
+    ALOGE("Failed to create temporary file %s: %s", path_tmp, strerror(errno));
+    return false;
+  }
+  bool written = TEMP_FAILURE_RETRY(write(fd, &header, sizeof(header))) ==
+                 static_cast<ssize_t>(sizeof(header));
+  if (close(fd) != 0 || !written ||
+      chmod(path_tmp, S_IRUSR | S_IRGRP | S_IROTH) != 0 ||
+      rename(path_tmp, path) != 0) {
+    ALOGE("Failed to write relro header %s: %s", path, strerror(errno));
+    unlink(path_tmp);
+    return false;
+  }
+  return true;
+}
+
+// Returns whether the RELRO file open as |relro_fd| was created for |lib| at
+// |reserved_addr|, logging why not if it wasn't.
+bool CheckRelroHeader(const char* lib, const char* relro, int relro_fd,
+                      void* reserved_addr, size_t reserved_size) {
+  char path[strlen(relro) + sizeof(kHeaderSuffix)];
+  strlcpy(path, relro, sizeof(path));
+  strlcat(path, kHeaderSuffix, sizeof(path));
+  RelroHeader expected;
+  int fd = TEMP_FAILURE_RETRY(open(path, O_RDONLY | O_CLOEXEC));
+  if (fd == -1) {
+    ALOGW("No relro header %s: %s", path, strerror(errno));
+    return false;
+  }
+  ssize_t n = TEMP_FAILURE_RETRY(read(fd, &expected, sizeof(expected)));
+  close(fd);
+  if (n != static_cast<ssize_t>(sizeof(expected)) ||
+      expected.magic != kRelroHeaderMagic ||
+      expected.version != kRelroHeaderVersion) {
+    ALOGW("Relro header %s is invalid or from another version", path);
+    return false;
+  }
+  RelroHeader actual;
+  if (!MakeRelroHeader(lib, relro_fd, reserved_addr, reserved_size, &actual)) {
+    return false;
+  }
+  const char* mismatch = NULL;
+  if (actual.build_id_size != expected.build_id_size ||
+      memcmp(actual.build_id, expected.build_id, sizeof(actual.build_id)) !=
+          0 ||
+      actual.lib_size != expected.lib_size) {
+    mismatch = "library build";
+  } else if (actual.load_address != expected.load_address ||
+             actual.load_size != expected.load_size) {
+    mismatch = "load address";
+  } else if (actual.relro_size != expected.relro_size) {
+    mismatch = "relro file size";
+  }
+  if (mismatch != NULL) {
+    ALOGW("Relro file %s does not match %s: different %s", relro, lib,
+          mismatch);
+    return false;
+  }
+  return true;
+}
+
+bool GetLoadSize(const char* lib, size_t* size) {
+  LibraryInfo info;
+  if (!GetLibraryInfo(lib, &info)) return false;
+  *size = info.load_size;
+  return true;
+}
+
+// Reads ahead the ranges listed in |lib|'s hot page list. The list is text:
+// a "# build-id <hex>" line identifying the library it was recorded for,
+// then one "<offset> <length>" line per range, in bytes.
+void* PrefetchHotPages(void* arg) {
+  char* lib = static_cast<char*>(arg);
+  char path[strlen(lib) + sizeof(kHotPagesSuffix)];
+  strlcpy(path, lib, sizeof(path));
+  strlcat(path, kHotPagesSuffix, sizeof(path));
+  FILE* list = fopen(path, "re");
+  int fd = -1;
+  LibraryInfo info;
+  if (list == NULL) {
+    ALOGW("Failed to open hot page list %s: %s", path, strerror(errno));
+  } else if ((fd = TEMP_FAILURE_RETRY(open(lib, O_RDONLY | O_CLOEXEC))) ==
+             -1) {
+    ALOGW("Failed to open library %s: %s", lib, strerror(errno));
+  } else if (!GetLibraryInfo(lib, &info)) {
+    ALOGW("Not prefetching hot pages of %s: can't read its build-id", lib);
+  } else {
+    char build_id[2 * kMaxBuildIdSize + 1];
+    for (uint32_t i = 0; i < info.build_id_size; ++i) {
+      snprintf(build_id + 2 * i, 3, "%02x", info.build_id[i]);
+    }
+    build_id[2 * info.build_id_size] = '\0';
+    bool matched = false;
+    int ranges = 0;
+    uint64_t bytes = 0;
+    char line[128];
+    while (fgets(line, sizeof(line), list) != NULL) {
+      if (line[0] == '#') {
+        char recorded[sizeof(build_id)];
+        if (sscanf(line, "# build-id %64s", recorded) == 1) {
+          matched = strcmp(recorded, build_id) == 0;
+          if (!matched) {
+            ALOGW("Hot page list %s is for another build of %s", path, lib);
+            break;
+          }
+        }
+        continue;
+      }
+      if (!matched) {
+        ALOGW("Hot page list %s has no build-id", path);
+        break;
+      }
+      char* end;
+      uint64_t offset = strtoull(line, &end, 0);
+      uint64_t length = strtoull(end, &end, 0);
+      if (length == 0) continue;
+      readahead(fd, offset, length);
+      ++ranges;
+      bytes += length;
+    }
+    ALOGV("Prefetched %d ranges (%llu bytes) of %s", ranges,
+          static_cast<unsigned long long>(bytes), lib);
+  }
+  if (list != NULL) fclose(list);
+  if (fd != -1) close(fd);
+  free(lib);
+  return NULL;
+}
+
+void StartHotPagePrefetch(const char* lib) {
+  char value[PROP_VALUE_MAX];
+  if (__system_property_get(kPrefetchProperty, value) > 0 &&
+      (strcmp(value, "0") == 0 || strcmp(value, "false") == 0)) {
+    return;
+  }
+  char path[strlen(lib) + sizeof(kHotPagesSuffix)];
+  strlcpy(path, lib, sizeof(path));
+  strlcat(path, kHotPagesSuffix, sizeof(path));
+  if (access(path, R_OK) != 0) return;  // No list recorded for this library.
+
+  char* arg = strdup(lib);
+  if (arg == NULL) return;
+  pthread_attr_t attr;
+  pthread_attr_init(&attr);
+  pthread_attr_setdetachstate(&attr, PTHREAD_CREATE_DETACHED);
+  pthread_t thread;
+  if (pthread_create(&thread, &attr, PrefetchHotPages, arg) != 0) {
+    ALOGW("Failed to start hot page prefetch thread for %s", lib);
+    free(arg);
+  }
+  pthread_attr_destroy(&attr);
+}
+
+jboolean DoCreateRelroFileAt(const char* lib, const char* relro,
+                             void* reserved_addr, size_t reserved_size) {
   // Try to unlink the old file, since if this is being called, the old one is
   // obsolete.
   if (unlink(relro) != 0 && errno != ENOENT) {
@@ -77,18 +405,25 @@ jboolean DoCreateRelroFile(const char* lib, const char* relro) {
   }
   android_dlextinfo extinfo;
   extinfo.flags = ANDROID_DLEXT_RESERVED_ADDRESS | ANDROID_DLEXT_WRITE_RELRO;
-  extinfo.reserved_addr = gReservedAddress;
-  extinfo.reserved_size = gReservedSize;
+  extinfo.reserved_addr = reserved_addr;
+  extinfo.reserved_size = reserved_size;
   extinfo.relro_fd = tmp_fd;
   void* handle = android_dlopen_ext(lib, RTLD_NOW, &extinfo);
+  RelroHeader header;
+  bool have_header = handle != NULL &&
+      MakeRelroHeader(lib, tmp_fd, reserved_addr, reserved_size, &header);
   int close_result = close(tmp_fd);
   if (handle == NULL) {
     ALOGE("Failed to load library %s: %s", lib, dlerror());
     unlink(relro_tmp);
     return JNI_FALSE;
   }
-  if (close_result != 0 ||
+  // Write the header before renaming the RELRO file into place, so that a
+  // new RELRO file is never checked against an old header that happens to
+  // match.
+  if (close_result != 0 || !have_header ||
       chmod(relro_tmp, S_IRUSR | S_IRGRP | S_IROTH) != 0 ||
+      !WriteRelroHeader(relro, header) ||
       rename(relro_tmp, relro) != 0) {
     ALOGE("Failed to update relro file %s: %s", relro, strerror(errno));
     unlink(relro_tmp);
@@ -98,24 +433,74 @@ jboolean DoCreateRelroFile(const char* lib, const char* relro) {
   return JNI_TRUE;
 }
 
-jboolean DoLoadWithRelroFile(const char* lib, const char* relro) {
+jboolean DoCreateRelroFile(const char* lib, const char* relro) {
+  return DoCreateRelroFileAt(lib, relro, gReservedAddress, gReservedSize);
+}
+
+jboolean DoLoadWithRelroFileAt(const char* lib, const char* relro,
+                               void* reserved_addr, size_t reserved_size) {
+  android_dlextinfo extinfo;
+  extinfo.flags = ANDROID_DLEXT_RESERVED_ADDRESS;
+  extinfo.reserved_addr = reserved_addr;
+  extinfo.reserved_size = reserved_size;
   int relro_fd = TEMP_FAILURE_RETRY(open(relro, O_RDONLY));
   if (relro_fd == -1) {
-    ALOGE("Failed to open relro file %s: %s", relro, strerror(errno));
-    return JNI_FALSE;
+    ALOGW("Failed to open relro file %s: %s", relro, strerror(errno));
+  } else if (CheckRelroHeader(lib, relro, relro_fd, reserved_addr,
+                              reserved_size)) {
+    extinfo.flags |= ANDROID_DLEXT_USE_RELRO;
+    extinfo.relro_fd = relro_fd;
   }
-  android_dlextinfo extinfo;
-  extinfo.flags = ANDROID_DLEXT_RESERVED_ADDRESS | ANDROID_DLEXT_USE_RELRO;
-  extinfo.reserved_addr = gReservedAddress;
-  extinfo.reserved_size = gReservedSize;
-  extinfo.relro_fd = relro_fd;
+  // Without a valid RELRO file, still load at the reserved address so that a
+  // RELRO file created later (by the system, when it next regenerates them)
+  // matches, but this process gets private RELRO pages.
+  bool hit = (extinfo.flags & ANDROID_DLEXT_USE_RELRO) != 0;
   void* handle = android_dlopen_ext(lib, RTLD_NOW, &extinfo);
-  close(relro_fd);
+  if (relro_fd != -1) close(relro_fd);
   if (handle == NULL) {
     ALOGE("Failed to load library %s: %s", lib, dlerror());
     return JNI_FALSE;
   }
-  ALOGV("Loaded library %s with relro file %s", lib, relro);
+  int hits = __sync_add_and_fetch(&gRelroHits, hit ? 1 : 0);
+  int misses = __sync_add_and_fetch(&gRelroMisses, hit ? 0 : 1);
+  ALOGI("Loaded library %s %s relro sharing (%d with, %d without so far)", lib,
+        hit ? "with" : "WITHOUT", hits, misses);
+  StartHotPagePrefetch(lib);
+  return JNI_TRUE;
+}
+
+jboolean DoLoadWithRelroFile(const char* lib, const char* relro) {
+  return DoLoadWithRelroFileAt(lib, relro, gReservedAddress, gReservedSize);
+}
+
+// The *RelroFiles variants share RELRO for several libraries, laid out one
+// after another in the reserved address space in the order given. Both the
+// process creating the files and the ones loading them compute the same
+// layout from the same libraries, so each library ends up at the same address
+// everywhere. Libraries must be listed before any library that depends on
+// them, so that they are already loaded when the dependent one is. Libraries
+// that don't fit in the reservation, and any after them, are left for the
+// dynamic linker to load normally when they are needed.
+typedef jboolean (*RelroFunction)(const char* lib, const char* relro,
+                                  void* reserved_addr, size_t reserved_size);
+
+jboolean DoForEachLibrary(RelroFunction function, const char* const* libs,
+                          const char* const* relros, int count) {
+  char* addr = static_cast<char*>(gReservedAddress);
+  size_t remaining = gReservedSize;
+  for (int i = 0; i < count; ++i) {
+    size_t size;
+    if (!GetLoadSize(libs[i], &size)) return JNI_FALSE;
+    if (size > remaining) {
+      ALOGW("Library %s (%zd bytes) does not fit in the remaining %zd bytes "
+            "of reserved address space; not sharing RELRO for it or the %d "
+            "libraries after it", libs[i], size, remaining, count - i - 1);
+      break;
+    }
+    if (!function(libs[i], relros[i], addr, size)) return JNI_FALSE;
+    addr += size;
+    remaining -= size;
+  }
   return JNI_TRUE;
 }
 
@@ -175,6 +560,89 @@ jboolean LoadWithRelroFile(JNIEnv* env, jclass, jstring lib32, jstring lib64,
   return ret;
 }
 
+// Holds the UTF-8 copies of the strings in a Java String[].
+class StringArrayUtf {
+ public:
+  StringArrayUtf(JNIEnv* env, jobjectArray array)
+      : env_(env), count_(0), ok_(false) {
+    if (array == NULL) return;
+    jsize length = env->GetArrayLength(array);
+    if (length > kMaxLibraries) {
+      ALOGE("Too many libraries (%d, at most %d are supported)", length,
+            kMaxLibraries);
+      return;
+    }
+    for (; count_ < length; ++count_) {
+      strings_[count_] =
+          static_cast<jstring>(env->GetObjectArrayElement(array, count_));
+      utf_[count_] = strings_[count_] == NULL
+                         ? NULL
+                         : env->GetStringUTFChars(strings_[count_], NULL);
+      if (utf_[count_] == NULL) {
+        if (strings_[count_] != NULL) env->DeleteLocalRef(strings_[count_]);
+        return;
+      }
+    }
+    ok_ = true;
+  }
+
+  ~StringArrayUtf() {
+    for (int i = 0; i < count_; ++i) {
+      env_->ReleaseStringUTFChars(strings_[i], utf_[i]);
+      env_->DeleteLocalRef(strings_[i]);
+    }
+  }
+
+  bool ok() const { return ok_; }
+  int count() const { return count_; }
+  const char* const* get() const { return utf_; }
+
+ private:
+  JNIEnv* env_;
+  jstring strings_[kMaxLibraries];
+  const char* utf_[kMaxLibraries];
+  int count_;
+  bool ok_;
+};
+
+jboolean ForEachLibrary(JNIEnv* env, RelroFunction function,
+                        jobjectArray libs32, jobjectArray libs64,
+                        jobjectArray relros32, jobjectArray relros64) {
+#ifdef __LP64__
+  jobjectArray libs = libs64;
+  jobjectArray relros = relros64;
+  (void)libs32; (void)relros32;
+#else
+  jobjectArray libs = libs32;
+  jobjectArray relros = relros32;
+  (void)libs64; (void)relros64;
+#endif
+  StringArrayUtf libs_utf(env, libs);
+  StringArrayUtf relros_utf(env, relros);
+  if (!libs_utf.ok() || !relros_utf.ok()) return JNI_FALSE;
+  if (libs_utf.count() != relros_utf.count()) {
+    ALOGE("Got %d libraries but %d relro files", libs_utf.count(),
+          relros_utf.count());
+    return JNI_FALSE;
+  }
+  return DoForEachLibrary(function, libs_utf.get(), relros_utf.get(),
+                          libs_utf.count());
+}
+
+jboolean CreateRelroFiles(JNIEnv* env, jclass, jobjectArray libs32,
+                          jobjectArray libs64, jobjectArray relros32,
+                          jobjectArray relros64) {
+  return ForEachLibrary(env, DoCreateRelroFileAt, libs32, libs64, relros32,
+                        relros64);
+}
+
+jboolean LoadWithRelroFiles(JNIEnv* env, jclass, jobjectArray libs32,
+                            jobjectArray libs64, jobjectArray relros32,
+                            jobjectArray relros64) {
+  return ForEachLibrary(env, DoLoadWithRelroFileAt, libs32, libs64, relros32,
+                        relros64);
+}
+
 const char kClassName[] = "android/webkit/WebViewFactory";
 const JNINativeMethod kJniMethods[] = {
   { "nativeReserveAddressSpace", "(J)Z",
@@ -187,6 +655,19 @@ const JNINativeMethod kJniMethods[] = {
       reinterpret_cast<void*>(LoadWithRelroFile) },
 };
 
+// Only registered if WebViewFactory declares them, so that this library keeps
+// working with frameworks that predate them.
+const JNINativeMethod kOptionalJniMethods[] = {
+  { "nativeCreateRelroFiles",
+      "([Ljava/lang/String;[Ljava/lang/String;[Ljava/lang/String;"
+      "[Ljava/lang/String;)Z",
+      reinterpret_cast<void*>(CreateRelroFiles) },
+  { "nativeLoadWithRelroFiles",
+      "([Ljava/lang/String;[Ljava/lang/String;[Ljava/lang/String;"
+      "[Ljava/lang/String;)Z",
+      reinterpret_cast<void*>(LoadWithRelroFiles) },
+};
+
 }  // namespace
 
 void RegisterWebViewFactory(JNIEnv* env) {
@@ -194,7 +675,19 @@ void RegisterWebViewFactory(JNIEnv* env) {
   // return, so no need to handle errors here.
   jclass clazz = env->FindClass(kClassName);
   if (clazz) {
-    env->RegisterNatives(clazz, kJniMethods, NELEM(kJniMethods));
+    if (env->RegisterNatives(clazz, kJniMethods, NELEM(kJniMethods)) != 0) {
+      return;
+    }
+    for (int i = 0; i < NELEM(kOptionalJniMethods); ++i) {
+      const JNINativeMethod& method = kOptionalJniMethods[i];
+      if (env->GetStaticMethodID(clazz, method.name, method.signature) ==
+          NULL) {
+        // Not declared by this version of the framework.
+        env->ExceptionClear();
+        continue;
+      }
+      env->RegisterNatives(clazz, &method, 1);
+    }
   }
 }
 
@@ -0,0 +1,173 @@
+#!/usr/bin/env python
+#
+# Copyright (C) 2014 The Android Open Source Project
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+
+"""Generates the hot page list the WebView loader prefetches after loading.
+
+Reads an ftrace capture of WebView startup taken with the
+filemap/mm_filemap_add_to_page_cache event enabled and the page cache dropped
+beforehand, and writes the ranges of the library that startup faulted in. The
+list is tied to the library's build-id, so it has to be regenerated for every
+build; the loader ignores lists recorded for a different build.
+
+Usage: ./generate_hot_page_list.py --library out/.../libwebviewchromium.so \\
+           --inode <inode of the library on the device> trace.txt \\
+           > libwebviewchromium.so.hotpages
+
+The inode is given either in decimal with --inode, as printed by
+"adb shell stat -c %i", or with --inode-hex in the hex form the trace prints
+after "ino", which has no 0x prefix.
+
+Push the output next to the library on the device.
+"""
+
+import optparse
+import re
+import struct
+import sys
+
+
+_PAGE_SIZE = 4096
+
+_PT_NOTE = 4
+_NT_GNU_BUILD_ID = 3
+
+_ADD_TO_PAGE_CACHE_RE = re.compile(
+    r'mm_filemap_add_to_page_cache: dev (\d+:\d+) ino ([0-9a-f]+) .*ofs=(\d+)')
+
+
+def ReadBuildId(library_path):
+  """Returns the GNU build-id of an ELF file as a hex string, or None."""
+  with open(library_path, 'rb') as f:
+    data = f.read()
+  if data[:4] != b'\x7fELF':
+    return None
+  is_64 = data[4:5] == b'\x02'
+  endian = '<' if data[5:6] == b'\x01' else '>'
+  if is_64:
+    phoff, = struct.unpack_from(endian + 'Q', data, 0x20)
+    phentsize, phnum = struct.unpack_from(endian + 'HH', data, 0x36)
+  else:
+    phoff, = struct.unpack_from(endian + 'I', data, 0x1c)
+    phentsize, phnum = struct.unpack_from(endian + 'HH', data, 0x2a)
+  for i in range(phnum):
+    header = phoff + i * phentsize
+    if is_64:
+      p_type, _, p_offset, _, _, p_filesz = struct.unpack_from(
+          endian + 'IIQQQQ', data, header)
+    else:
+      p_type, p_offset, _, _, p_filesz = struct.unpack_from(
+          endian + 'IIIII', data, header)
+    if p_type != _PT_NOTE:
+      continue
+    note = p_offset
+    while note + 12 <= p_offset + p_filesz:
+      namesz, descsz, n_type = struct.unpack_from(endian + 'III', data, note)
+      name = note + 12
+      desc = name + ((namesz + 3) & ~3)
+      if n_type == _NT_GNU_BUILD_ID and data[name:name + namesz] == b'GNU\0':
+        return ''.join('%02x' % c for c in bytearray(data[desc:desc + descsz]))
+      note = desc + ((descsz + 3) & ~3)
+  return None
+
+
+def ReadHotPages(trace, inode, dev):
+  """Returns the sorted file offsets of the pages of |inode| in |trace|."""
+  pages = set()
+  for line in trace:
+    match = _ADD_TO_PAGE_CACHE_RE.search(line)
+    if not match:
+      continue
+    if int(match.group(2), 16) != inode:
+      continue
+    if dev and match.group(1) != dev:
+      continue
+    pages.add(int(match.group(3)) & ~(_PAGE_SIZE - 1))
+  return sorted(pages)
+
+
+def MergeRanges(pages, max_gap_pages):
+  """Merges page offsets into (offset, length) ranges.
+
+  Pages up to |max_gap_pages| apart are merged, since reading a few pages that
+  were not touched is cheaper than issuing another read.
+  """
+  ranges = []
+  for page in pages:
+    if ranges:
+      offset, length = ranges[-1]
+      if page <= offset + length + max_gap_pages * _PAGE_SIZE:
+        ranges[-1] = (offset, page + _PAGE_SIZE - offset)
+        continue
+    ranges.append((page, _PAGE_SIZE))
+  return ranges
+
+
+def main(argv):
+  parser = optparse.OptionParser(usage='%prog [options] [trace]')
+  parser.add_option(
+      '--library', help='Path to the unstripped or stripped library that was '
+      'traced; only its build-id is used.')
+  parser.add_option(
+      '--inode', help='Inode of the library on the device, in decimal as '
+      'printed by "adb shell stat -c %i".')
+  parser.add_option(
+      '--inode-hex', help='Inode of the library on the device, in hex as the '
+      'trace prints it after "ino", e.g. 1a2b. Use instead of --inode.')
+  parser.add_option(
+      '--dev', help='Device of the library on the device, as major:minor. '
+      'Only needed if the inode is ambiguous.')
+  parser.add_option(
+      '--max-gap', type='int', default=4,
+      help='Merge ranges this many pages apart (default %default).')
+  options, args = parser.parse_args(argv[1:])
+  if (not options.library or len(args) > 1 or
+      bool(options.inode) == bool(options.inode_hex)):
+    parser.print_help()
+    return 1
+  try:
+    if options.inode:
+      inode = int(options.inode, 10)
+    else:
+      inode = int(options.inode_hex, 16)
+  except ValueError:
+    sys.stderr.write('Invalid inode %s; --inode is decimal, --inode-hex is '
+                     'hex\n' % (options.inode or options.inode_hex))
+    return 1
+
+  build_id = ReadBuildId(options.library)
+  if not build_id:
+    sys.stderr.write('%s has no build-id\n' % options.library)
+    return 1
+  if args:
+    with open(args[0]) as trace:
+      pages = ReadHotPages(trace, inode, options.dev)
+  else:
+    pages = ReadHotPages(sys.stdin, inode, options.dev)
+  if not pages:
+    sys.stderr.write('No pages of inode %d (%x) in the trace\n' %
+                     (inode, inode))
+    return 1
+
+  ranges = MergeRanges(pages, options.max_gap)
+  sys.stdout.write('# build-id %s\n' % build_id)
+  for offset, length in ranges:
+    sys.stdout.write('%d %d\n' % (offset, length))
+  sys.stderr.write('%d pages in %d ranges\n' % (len(pages), len(ranges)))
+  return 0
+
+
+if __name__ == '__main__':
+  sys.exit(main(sys.argv))